@@ -7,11 +7,28 @@ import android.os.Bundle;
 import android.os.Handler;
 
 import com.example.android.contactslist.ui.ContactsListActivity;
+import com.example.android.contactslist.ui.ContactsPreloader;
 
 
+/**
+ * Shows the splash while {@link ContactsPreloader} gets the contacts list ready, then opens the
+ * list as soon as its first page is ready, or after five seconds at most.
+ */
 public class MainSplashScreen extends Activity {
 
+    // The longest the splash is shown for
+    private static final long MAX_SPLASH_MILLIS = 5 * 1000;
+
     MediaPlayer oursong;
+    private final Handler mHandler = new Handler();
+    private boolean mLaunched;
+
+    private final Runnable mLaunchList = new Runnable() {
+        @Override
+        public void run() {
+            launchList();
+        }
+    };
     @Override
     protected void onCreate(Bundle ankursingh) {
         // TODO Auto-generated method stub
@@ -20,22 +37,31 @@ public class MainSplashScreen extends Activity {
         oursong = MediaPlayer.create(MainSplashScreen.this, R.raw.song);
         oursong.start();
 
+        // Query the contacts and decode the first page of thumbnails while the splash shows
+        ContactsPreloader.start(this, new ContactsPreloader.OnFirstPageReadyListener() {
+            @Override
+            public void onFirstPageReady() {
+                launchList();
+            }
+        });
 
+        // Don't hold the user for longer than this, even if the preload isn't done
+        mHandler.postDelayed(mLaunchList, MAX_SPLASH_MILLIS);
 
-        new Handler().postDelayed(new Runnable() {
-
-            // Using handler with postDelayed called runnable run method
+    }
 
-            @Override
-            public void run() {
-                Intent i = new Intent(MainSplashScreen.this, ContactsListActivity.class);
-                startActivity(i);
+    private void launchList() {
+        if (mLaunched || isFinishing()) {
+            return;
+        }
+        mLaunched = true;
+        mHandler.removeCallbacks(mLaunchList);
 
-                // close this activity
-                finish();
-            }
-        }, 5*1000); // wait for 5 seconds
+        Intent i = new Intent(MainSplashScreen.this, ContactsListActivity.class);
+        startActivity(i);
 
+        // close this activity
+        finish();
     }
 
 
@@ -44,6 +70,11 @@ public class MainSplashScreen extends Activity {
         // TODO Auto-generated method stub
         super.onPause();
         oursong.release();
+        mHandler.removeCallbacks(mLaunchList);
+        if (!mLaunched) {
+            // Left before the list was opened, so nothing will take the preloaded contacts
+            ContactsPreloader.discard();
+        }
         finish();
     }
 
@@ -53,13 +53,16 @@ public class ContactDetailActivity extends FragmentActivity {
 
 
             final Uri uri = getIntent().getData();
+            final String thumbnailKey =
+                    getIntent().getStringExtra(ContactDetailFragment.EXTRA_CONTACT_THUMBNAIL);
 
 
             if (getSupportFragmentManager().findFragmentByTag(TAG) == null) {
                 final FragmentTransaction ft = getSupportFragmentManager().beginTransaction();
 
 
-                ft.add(android.R.id.content, ContactDetailFragment.newInstance(uri), TAG);
+                ft.add(android.R.id.content, ContactDetailFragment.newInstance(uri, thumbnailKey),
+                        TAG);
                 ft.commit();
             }
         } else {
@@ -18,12 +18,9 @@ package com.example.android.contactslist.ui;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -36,7 +33,6 @@ import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.util.DisplayMetrics;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -49,13 +45,13 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.example.android.contactslist.BuildConfig;
 import com.example.android.contactslist.R;
+import com.example.android.contactslist.util.ImageKey;
 import com.example.android.contactslist.util.ImageLoader;
 import com.example.android.contactslist.util.Utils;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 
 public class ContactDetailFragment extends Fragment implements
@@ -64,6 +60,11 @@ public class ContactDetailFragment extends Fragment implements
     public static final String EXTRA_CONTACT_URI =
             "com.example.android.contactslist.ui.EXTRA_CONTACT_URI";
 
+    // The cache key of the contact's thumbnail in the contacts list, used as a preview while
+    // the full size photo loads
+    public static final String EXTRA_CONTACT_THUMBNAIL =
+            "com.example.android.contactslist.ui.EXTRA_CONTACT_THUMBNAIL";
+
     // Defines a tag for identifying log entries
     private static final String TAG = "ContactDetailFragment";
 
@@ -74,6 +75,7 @@ public class ContactDetailFragment extends Fragment implements
     private boolean mIsTwoPaneLayout;
 
     private Uri mContactUri; // Stores the contact Uri for this fragment instance
+    private String mContactThumbnail; // Stores the contact's list thumbnail cache key, if known
     private ImageLoader mImageLoader; // Handles loading the contact image in a background thread
 
 
@@ -85,12 +87,18 @@ public class ContactDetailFragment extends Fragment implements
 
 
     public static ContactDetailFragment newInstance(Uri contactUri) {
+        return newInstance(contactUri, null);
+    }
+
+
+    public static ContactDetailFragment newInstance(Uri contactUri, String thumbnailKey) {
         // Create new instance of this fragment
         final ContactDetailFragment fragment = new ContactDetailFragment();
 
         // Create and populate the args bundle
         final Bundle args = new Bundle();
         args.putParcelable(EXTRA_CONTACT_URI, contactUri);
+        args.putString(EXTRA_CONTACT_THUMBNAIL, thumbnailKey);
 
         // Assign the args bundle to the new fragment
         fragment.setArguments(args);
@@ -104,6 +112,17 @@ public class ContactDetailFragment extends Fragment implements
 
 
     public void setContact(Uri contactLookupUri) {
+        setContact(contactLookupUri, null);
+    }
+
+    /**
+     * Shows a contact, using the thumbnail the contacts list already has in memory as a preview
+     * until the full size photo is loaded.
+     *
+     * @param thumbnailKey The cache key of the contacts list thumbnail, or null.
+     */
+    public void setContact(Uri contactLookupUri, String thumbnailKey) {
+        mContactThumbnail = thumbnailKey;
 
 
         if (Utils.hasHoneycomb()) {
@@ -116,8 +135,9 @@ public class ContactDetailFragment extends Fragment implements
 
         // If the Uri contains data, load the contact's image and load contact details.
         if (contactLookupUri != null) {
-            // Asynchronously loads the contact image
-            mImageLoader.loadImage(mContactUri, mImageView);
+            // Shows the list's cached thumbnail straight away, then asynchronously loads the
+            // full size contact image
+            mImageLoader.loadImage(mContactUri, mImageView, ImageKey.fromString(thumbnailKey));
 
             // Shows the contact photo ImageView and hides the empty view
             mImageView.setVisibility(View.VISIBLE);
@@ -156,15 +176,15 @@ public class ContactDetailFragment extends Fragment implements
         setHasOptionsMenu(true);
 
 
-        mImageLoader = new ImageLoader(getActivity(), getLargestScreenDimension()) {
-            @Override
-            protected Bitmap processBitmap(Object data) {
-                // This gets called in a background thread and passed the data from
-                // ImageLoader.loadImage().
-                return loadContactPhoto((Uri) data, getImageSize());
-
-            }
-        };
+        mImageLoader = new ImageLoader(getActivity(), getLargestScreenDimension(),
+                new ImageLoader.ImageSource() {
+                    @Override
+                    public Uri[] getUris(Object data) {
+                        // This gets called in a background thread and passed the data from
+                        // ImageLoader.loadImage().
+                        return getPhotoUris((Uri) data);
+                    }
+                });
 
         // Set a placeholder loading image for the image loader
         mImageLoader.setLoadingImage(R.drawable.ic_contact_picture_180_holo_light);
@@ -172,6 +192,15 @@ public class ContactDetailFragment extends Fragment implements
         // Tell the image loader to set the image directly when it's finished loading
         // rather than fading in
         mImageLoader.setImageFadeIn(false);
+
+        // Share the process-wide cache, so reopening a contact doesn't decode its photo again
+        // and the list's thumbnails are available as previews
+        mImageLoader.addImageCache(getActivity());
+
+        // Only one contact photo is shown at a time, so a single decode thread is enough and
+        // any older request that is still waiting can be dropped
+        mImageLoader.setDecodeThreadCount(1);
+        mImageLoader.setMaxPendingWork(1);
     }
 
     @Override
@@ -202,11 +231,13 @@ public class ContactDetailFragment extends Fragment implements
         // If not being created from a previous state
         if (savedInstanceState == null) {
             // Sets the argument extra as the currently displayed contact
-            setContact(getArguments() != null ?
-                    (Uri) getArguments().getParcelable(EXTRA_CONTACT_URI) : null);
+            final Bundle args = getArguments();
+            setContact(args != null ? (Uri) args.getParcelable(EXTRA_CONTACT_URI) : null,
+                    args != null ? args.getString(EXTRA_CONTACT_THUMBNAIL) : null);
         } else {
 
-            setContact((Uri) savedInstanceState.getParcelable(EXTRA_CONTACT_URI));
+            setContact((Uri) savedInstanceState.getParcelable(EXTRA_CONTACT_URI),
+                    savedInstanceState.getString(EXTRA_CONTACT_THUMBNAIL));
         }
     }
 
@@ -216,6 +247,18 @@ public class ContactDetailFragment extends Fragment implements
         super.onSaveInstanceState(outState);
         // Saves the contact Uri
         outState.putParcelable(EXTRA_CONTACT_URI, mContactUri);
+        outState.putString(EXTRA_CONTACT_THUMBNAIL, mContactThumbnail);
+    }
+
+    /**
+     * Adds the image loader's metrics to {@code adb shell dumpsys activity}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mImageLoader != null) {
+            mImageLoader.dump(prefix, writer);
+        }
     }
 
     @Override
@@ -409,89 +452,18 @@ public class ContactDetailFragment extends Fragment implements
         return height > width ? height : width;
     }
 
+    /**
+     * Returns the Uris a contact's photo may be at: the full size display photo, on Android 4.0
+     * and later, then the thumbnail every contact with a photo has.
+     */
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-    private Bitmap loadContactPhoto(Uri contactUri, int imageSize) {
-
-
-        if (!isAdded() || getActivity() == null) {
-            return null;
-        }
-
-
-        final ContentResolver contentResolver = getActivity().getContentResolver();
-
-
-        AssetFileDescriptor afd = null;
-
+    private static Uri[] getPhotoUris(Uri contactUri) {
+        final Uri thumbnailUri = Uri.withAppendedPath(contactUri, Photo.CONTENT_DIRECTORY);
         if (Utils.hasICS()) {
-
-            try {
-
-                Uri displayImageUri = Uri.withAppendedPath(contactUri, Photo.DISPLAY_PHOTO);
-
-
-                afd = contentResolver.openAssetFileDescriptor(displayImageUri, "r");
-                // If the file exists
-                if (afd != null) {
-                    // Reads and decodes the file to a Bitmap and scales it to the desired size
-                    return ImageLoader.decodeSampledBitmapFromDescriptor(
-                            afd.getFileDescriptor(), imageSize, imageSize);
-                }
-            } catch (FileNotFoundException e) {
-                // Catches file not found exceptions
-                if (BuildConfig.DEBUG) {
-
-                    Log.d(TAG, "Contact photo not found for contact " + contactUri.toString()
-                            + ": " + e.toString());
-                }
-            } finally {
-
-                if (afd != null) {
-                    try {
-                        afd.close();
-                    } catch (IOException e) {
-
-                    }
-                }
-            }
+            return new Uri[] {
+                    Uri.withAppendedPath(contactUri, Photo.DISPLAY_PHOTO), thumbnailUri};
         }
-
-
-        try {
-
-            Uri imageUri = Uri.withAppendedPath(contactUri, Photo.CONTENT_DIRECTORY);
-
-            // Retrieves an AssetFileDescriptor from the Contacts Provider, using the constructed
-            // Uri
-            afd = getActivity().getContentResolver().openAssetFileDescriptor(imageUri, "r");
-
-            // If the file exists
-            if (afd != null) {
-                // Reads the image from the file, decodes it, and scales it to the available screen
-                // area
-                return ImageLoader.decodeSampledBitmapFromDescriptor(
-                        afd.getFileDescriptor(), imageSize, imageSize);
-            }
-        } catch (FileNotFoundException e) {
-            // Catches file not found exceptions
-            if (BuildConfig.DEBUG) {
-
-                Log.d(TAG, "Contact photo not found for contact " + contactUri.toString()
-                        + ": " + e.toString());
-            }
-        } finally {
-
-            if (afd != null) {
-                try {
-                    afd.close();
-                } catch (IOException e) {
-
-                }
-            }
-        }
-
-        // If none of the case selectors match, returns null.
-        return null;
+        return new Uri[] {thumbnailUri};
     }
 
 
@@ -24,6 +24,7 @@ import android.support.v4.app.FragmentActivity;
 
 import com.example.android.contactslist.BuildConfig;
 import com.example.android.contactslist.R;
+import com.example.android.contactslist.util.ImageCache;
 import com.example.android.contactslist.util.Utils;
 
 
@@ -79,14 +80,15 @@ public class ContactsListActivity extends FragmentActivity implements
 
 
     @Override
-    public void onContactSelected(Uri contactUri) {
+    public void onContactSelected(Uri contactUri, String thumbnailKey) {
         if (isTwoPaneLayout && mContactDetailFragment != null) {
             // If two pane layout then update the detail fragment to show the selected contact
-            mContactDetailFragment.setContact(contactUri);
+            mContactDetailFragment.setContact(contactUri, thumbnailKey);
         } else {
 
             Intent intent = new Intent(this, ContactDetailActivity.class);
             intent.setData(contactUri);
+            intent.putExtra(ContactDetailFragment.EXTRA_CONTACT_THUMBNAIL, thumbnailKey);
             startActivity(intent);
         }
     }
@@ -104,4 +106,13 @@ public class ContactsListActivity extends FragmentActivity implements
 
         return !isSearchResultView && super.onSearchRequested();
     }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        // From ICS on the image cache hears about memory pressure directly
+        if (!Utils.hasICS()) {
+            ImageCache.getInstance(this).trimMemory(ImageCache.TRIM_LEVEL_LOW_MEMORY);
+        }
+    }
 }
@@ -22,17 +22,18 @@ import android.app.Activity;
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.preference.PreferenceManager;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.CursorAdapter;
 import android.text.SpannableString;
@@ -55,16 +56,23 @@ import android.widget.QuickContactBadge;
 import android.widget.SearchView;
 import android.widget.SectionIndexer;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.example.android.contactslist.BuildConfig;
 import com.example.android.contactslist.R;
+import com.example.android.contactslist.util.ContactSearchIndex;
+import com.example.android.contactslist.util.ImageCache;
+import com.example.android.contactslist.util.ImageKey;
 import com.example.android.contactslist.util.ImageLoader;
+import com.example.android.contactslist.util.ImagePrefetcher;
+import com.example.android.contactslist.util.IncrementalSearch;
+import com.example.android.contactslist.util.LetterTileCache;
+import com.example.android.contactslist.util.SearchScheduler;
+import com.example.android.contactslist.util.SearchMatcher;
 import com.example.android.contactslist.util.Utils;
 
 import java.io.FileDescriptor;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.util.Locale;
+import java.io.PrintWriter;
 
 
 public class ContactsListFragment extends ListFragment implements
@@ -77,9 +85,21 @@ public class ContactsListFragment extends ListFragment implements
     private static final String STATE_PREVIOUSLY_SELECTED_KEY =
             "com.example.android.contactslist.ui.SELECTED_ITEM";
 
+    // Whether row thumbnails share atlas pages instead of a bitmap each, see ThumbnailAtlas.
+    // Only debug builds read it, see useThumbnailAtlas().
+    private static final String PREF_USE_THUMBNAIL_ATLAS = "debug_use_thumbnail_atlas";
+
     private ContactsAdapter mAdapter; // The main query adapter
     private ImageLoader mImageLoader; // Handles loading the contact image in a background thread
+    private ImagePrefetcher mImagePrefetcher; // Loads thumbnails for rows about to scroll in
+    private ContentObserver mContactsObserver; // Refreshes thumbnails and searches on changes
+    private LetterTileCache mLetterTiles; // Initials shown for contacts without a photo
     private String mSearchTerm; // Stores the current search query term
+    private Cursor mPreloadedCursor; // Shown until the loader's first result, see ContactsPreloader
+    private Cursor mContactsCursor; // The loader's latest result, shown when not searching
+    private SearchScheduler mSearchScheduler; // Runs the filter queries as the user types
+    private Cursor mSearchCursor; // The latest search result, shown while searching
+    private final Handler mHandler = new Handler();
 
 
     private OnContactsInteractionListener mOnContactSelectedListener;
@@ -130,19 +150,68 @@ public class ContactsListFragment extends ListFragment implements
         }
 
 
-        mImageLoader = new ImageLoader(getActivity(), getListPreferredItemHeight()) {
+        mImageLoader = createImageLoader(getActivity());
+
+        // Contacts without a photo get a tile with their initial. Tiles are rendered in the
+        // background, so the rows bound without theirs are given them once they're ready.
+        mLetterTiles = new LetterTileCache(getResources());
+        mLetterTiles.setOnTilesRenderedListener(new LetterTileCache.OnTilesRenderedListener() {
             @Override
-            protected Bitmap processBitmap(Object data) {
+            public void onTilesRendered() {
+                updateLetterTiles();
+            }
+        });
 
-                return loadContactPhotoThumbnail((String) data, getImageSize());
+        // A contact that had no photo may have been given one, and a search answered by the
+        // provider may now have a different result. The contacts loader and the search index
+        // built from it are brought up to date by the loader itself.
+        final ImageCache imageCache = ImageCache.getInstance(getActivity());
+        mContactsObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                imageCache.invalidateMissing();
+                mSearchScheduler.refresh();
             }
         };
+        getActivity().getContentResolver().registerContentObserver(
+                Contacts.CONTENT_URI, true, mContactsObserver);
 
-        // Set a placeholder loading image for the image loader
-        mImageLoader.setLoadingImage(R.drawable.ic_contact_picture_holo_light);
+        // Filter queries run as typing pauses, and only the latest one's result is shown
+        mSearchScheduler = new SearchScheduler(getActivity().getContentResolver(),
+                ContactsQuery.FILTER_URI, ContactsQuery.PROJECTION, ContactsQuery.SELECTION,
+                ContactsQuery.SORT_ORDER, new SearchScheduler.OnSearchResultListener() {
+                    @Override
+                    public void onSearchResult(String query, Cursor cursor, long queryMillis) {
+                        onSearchFinished(query, cursor);
+                    }
+                });
 
-        // Add a cache to the image loader
-        mImageLoader.addImageCache(getActivity().getSupportFragmentManager(), 0.1f);
+        // Prefetch thumbnails for the rows just past the edge of the list as it scrolls
+        mImagePrefetcher = new ImagePrefetcher(mImageLoader, new ImagePrefetcher.DataSource() {
+            @Override
+            public ImageKey getImageKey(int position) {
+                final Cursor cursor = mAdapter.getCursor();
+                if (cursor == null || !cursor.moveToPosition(position)) {
+                    return null;
+                }
+                return mImageLoader.getContactKey(cursor.getLong(ContactsQuery.ID),
+                        cursor.getLong(ContactsQuery.PHOTO_ID));
+            }
+
+            @Override
+            public Object getImageData(int position) {
+                final Cursor cursor = mAdapter.getCursor();
+                if (cursor == null || !cursor.moveToPosition(position)) {
+                    return null;
+                }
+                return getPhotoData(cursor);
+            }
+
+            @Override
+            public int getCount() {
+                return mAdapter.getCount();
+            }
+        });
     }
 
     @Override
@@ -171,7 +240,10 @@ public class ContactsListFragment extends ListFragment implements
             }
 
             @Override
-            public void onScroll(AbsListView absListView, int i, int i1, int i2) {}
+            public void onScroll(AbsListView absListView, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+                mImagePrefetcher.onScroll(firstVisibleItem, visibleItemCount);
+            }
         });
 
         if (mIsTwoPaneLayout) {
@@ -180,9 +252,21 @@ public class ContactsListFragment extends ListFragment implements
         }
 
 
-        if (mPreviouslySelectedSearchItem == 0) {
-            // Initialize the loader, and create a loader identified by ContactsQuery.QUERY_ID
-            getLoaderManager().initLoader(ContactsQuery.QUERY_ID, null, this);
+        // The splash screen may have queried the contacts already. Show its rows straight away;
+        // the loader still runs, so the list follows changes from then on.
+        if (mSearchTerm == null) {
+            mPreloadedCursor = ContactsPreloader.takeCursor();
+            if (mPreloadedCursor != null) {
+                mAdapter.swapCursor(mPreloadedCursor);
+            }
+        }
+
+        // Initialize the loader, and create a loader identified by ContactsQuery.QUERY_ID. It
+        // always loads the whole list, which is shown again once a search ends.
+        getLoaderManager().initLoader(ContactsQuery.QUERY_ID, null, this);
+
+        if (mSearchTerm != null) {
+            mSearchScheduler.searchNow(mSearchTerm);
         }
     }
 
@@ -199,6 +283,30 @@ public class ContactsListFragment extends ListFragment implements
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        getActivity().getContentResolver().unregisterContentObserver(mContactsObserver);
+        mLetterTiles.close();
+        mSearchScheduler.close();
+        closePreloadedCursor();
+        closeSearchCursor();
+    }
+
+    /**
+     * Adds the image loader's metrics to {@code adb shell dumpsys activity}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mImageLoader != null) {
+            mImageLoader.dump(prefix, writer);
+        }
+        if (mSearchScheduler != null) {
+            mSearchScheduler.dump(prefix, writer);
+        }
+    }
+
     @Override
     public void onPause() {
         super.onPause();
@@ -220,7 +328,7 @@ public class ContactsListFragment extends ListFragment implements
                 cursor.getLong(ContactsQuery.ID),
                 cursor.getString(ContactsQuery.LOOKUP_KEY));
 
-        mOnContactSelectedListener.onContactSelected(uri);
+        mOnContactSelectedListener.onContactSelected(uri, getThumbnailKey(cursor));
 
 
         if (mIsTwoPaneLayout) {
@@ -229,6 +337,30 @@ public class ContactsListFragment extends ListFragment implements
     }
 
 
+    /**
+     * Returns the cache key of the thumbnail for the cursor's current row, so the detail view
+     * can show it while the full size photo loads.
+     */
+    private String getThumbnailKey(Cursor cursor) {
+        if (getPhotoData(cursor) == null) {
+            return null;
+        }
+        return mImageLoader.getContactKey(cursor.getLong(ContactsQuery.ID),
+                cursor.getLong(ContactsQuery.PHOTO_ID)).toString();
+    }
+
+    /**
+     * Returns what to load the thumbnail for the cursor's current row from, or null if the
+     * contact has no photo.
+     */
+    static String getPhotoData(Cursor cursor) {
+        if (cursor.getLong(ContactsQuery.PHOTO_ID) == 0) {
+            return null;
+        }
+        return cursor.getString(ContactsQuery.PHOTO_THUMBNAIL_DATA);
+    }
+
+
     private void onSelectionCleared() {
         // Uses callback to notify activity this contains this fragment
         mOnContactSelectedListener.onSelectionCleared();
@@ -251,6 +383,11 @@ public class ContactsListFragment extends ListFragment implements
             searchItem.setVisible(false);
         }
 
+        // Debug builds can switch the thumbnail atlas on, to measure it
+        final MenuItem atlasItem = menu.findItem(R.id.menu_thumbnail_atlas);
+        atlasItem.setVisible(BuildConfig.DEBUG);
+        atlasItem.setChecked(useThumbnailAtlas(getActivity()));
+
         // In version 3.0 and later, sets up and configures the ActionBar SearchView
         if (Utils.hasHoneycomb()) {
 
@@ -293,8 +430,7 @@ public class ContactsListFragment extends ListFragment implements
 
 
                     mSearchQueryChanged = true;
-                    getLoaderManager().restartLoader(
-                            ContactsQuery.QUERY_ID, null, ContactsListFragment.this);
+                    updateSearch();
                     return true;
                 }
             });
@@ -315,8 +451,7 @@ public class ContactsListFragment extends ListFragment implements
                             onSelectionCleared();
                         }
                         mSearchTerm = null;
-                        getLoaderManager().restartLoader(
-                                ContactsQuery.QUERY_ID, null, ContactsListFragment.this);
+                        updateSearch();
                         return true;
                     }
                 });
@@ -363,6 +498,15 @@ public class ContactsListFragment extends ListFragment implements
                     getActivity().onSearchRequested();
                 }
                 break;
+
+            // The image cache is shared by the whole process, so this applies once it restarts
+            case R.id.menu_thumbnail_atlas:
+                item.setChecked(!item.isChecked());
+                PreferenceManager.getDefaultSharedPreferences(getActivity()).edit()
+                        .putBoolean(PREF_USE_THUMBNAIL_ATLAS, item.isChecked()).commit();
+                Toast.makeText(getActivity(), R.string.thumbnail_atlas_restart,
+                        Toast.LENGTH_SHORT).show();
+                break;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -372,26 +516,9 @@ public class ContactsListFragment extends ListFragment implements
 
 
         if (id == ContactsQuery.QUERY_ID) {
-            Uri contentUri;
-
-
-
-            if (mSearchTerm == null) {
-
-                contentUri = ContactsQuery.CONTENT_URI;
-            } else {
-
-                contentUri =
-                        Uri.withAppendedPath(ContactsQuery.FILTER_URI, Uri.encode(mSearchTerm));
-            }
-
-
-            return new CursorLoader(getActivity(),
-                    contentUri,
-                    ContactsQuery.PROJECTION,
-                    ContactsQuery.SELECTION,
-                    null,
-                    ContactsQuery.SORT_ORDER);
+            // Searches don't go through the loader, see updateSearch(). It indexes the rows it
+            // loads, so searches don't need to go back to the provider.
+            return new ContactsLoader(getActivity());
         }
 
         Log.e(TAG, "onCreateLoader - incorrect ID provided (" + id + ")");
@@ -402,23 +529,13 @@ public class ContactsListFragment extends ListFragment implements
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
 
         if (loader.getId() == ContactsQuery.QUERY_ID) {
-            mAdapter.swapCursor(data);
-
-            if (mIsTwoPaneLayout && !TextUtils.isEmpty(mSearchTerm) && mSearchQueryChanged) {
-
-                if (data != null && data.moveToPosition(mPreviouslySelectedSearchItem)) {
-
-                    final Uri uri = Uri.withAppendedPath(
-                            Contacts.CONTENT_URI, String.valueOf(data.getLong(ContactsQuery.ID)));
-                    mOnContactSelectedListener.onContactSelected(uri);
-                    getListView().setItemChecked(mPreviouslySelectedSearchItem, true);
-                } else {
-                    // No results, clear selection.
-                    onSelectionCleared();
-                }
-
-                mPreviouslySelectedSearchItem = 0;
-                mSearchQueryChanged = false;
+            mContactsCursor = data;
+            if (mSearchTerm == null) {
+                showCursor(data);
+            }
+            closePreloadedCursor();
+            if (data instanceof ContactsLoader.IndexedCursor) {
+                onSearchIndexLoaded(((ContactsLoader.IndexedCursor) data).getSearchIndex());
             }
         }
     }
@@ -426,82 +543,195 @@ public class ContactsListFragment extends ListFragment implements
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         if (loader.getId() == ContactsQuery.QUERY_ID) {
+            mContactsCursor = null;
+            if (mSearchTerm == null) {
+                showCursor(null);
+            }
+            closePreloadedCursor();
+        }
+    }
 
-            mAdapter.swapCursor(null);
+    /**
+     * Answers searches from the index of a newly loaded list, and redoes the current search, if
+     * any, as the contacts have changed.
+     */
+    private void onSearchIndexLoaded(final ContactSearchIndex index) {
+        // Typing on narrows the last result and backspacing reuses an earlier one, so neither
+        // searches the whole index. Its results are only good for this index.
+        final IncrementalSearch search = new IncrementalSearch(index);
+        mSearchScheduler.setLocalSearch(new SearchScheduler.LocalSearch() {
+            @Override
+            public Cursor search(String query) {
+                // Matches words starting with the query's, as the provider's filter does
+                final int[] rows = search.search(query);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "search - " + search);
+                }
+                return new SearchIndexCursor(index, rows);
+            }
+        });
+        if (mSearchTerm != null) {
+            mSearchScheduler.searchNow(mSearchTerm);
         }
     }
 
+    /**
+     * Starts a search for the current search term, or goes back to the whole list if it's been
+     * cleared.
+     */
+    private void updateSearch() {
+        if (mSearchTerm != null) {
+            mSearchScheduler.search(mSearchTerm);
+            return;
+        }
+        mSearchScheduler.cancel();
+        showCursor(mContactsCursor != null ? mContactsCursor : mPreloadedCursor);
+        closeSearchCursor();
+    }
 
-    private int getListPreferredItemHeight() {
-        final TypedValue typedValue = new TypedValue();
+    /**
+     * Shows the result of the latest search.
+     */
+    private void onSearchFinished(String query, Cursor cursor) {
+        if (!query.equals(mSearchTerm)) {
+            cursor.close();
+            return;
+        }
+        showCursor(cursor);
+        closeSearchCursor();
+        mSearchCursor = cursor;
 
-        // Resolve list item preferred height theme attribute into typedValue
-        getActivity().getTheme().resolveAttribute(
-                android.R.attr.listPreferredItemHeight, typedValue, true);
+        if (mIsTwoPaneLayout && mSearchQueryChanged) {
 
-        // Create a new DisplayMetrics object
-        final DisplayMetrics metrics = new android.util.DisplayMetrics();
+            if (cursor.moveToPosition(mPreviouslySelectedSearchItem)) {
 
-        // Populate the DisplayMetrics
-        getActivity().getWindowManager().getDefaultDisplay().getMetrics(metrics);
+                final Uri uri = Uri.withAppendedPath(
+                        Contacts.CONTENT_URI, String.valueOf(cursor.getLong(ContactsQuery.ID)));
+                mOnContactSelectedListener.onContactSelected(uri, getThumbnailKey(cursor));
+                getListView().setItemChecked(mPreviouslySelectedSearchItem, true);
+            } else {
+                // No results, clear selection.
+                onSelectionCleared();
+            }
 
+            mPreviouslySelectedSearchItem = 0;
+            mSearchQueryChanged = false;
+        }
+    }
 
-        return (int) typedValue.getDimension(metrics);
+    private void showCursor(Cursor cursor) {
+        // Positions in the old cursor mean nothing in the new one
+        mImagePrefetcher.reset();
+        mAdapter.swapCursor(cursor);
     }
 
+    /**
+     * Gives the visible rows that were bound before their letter tile was ready their tile,
+     * without rebinding anything else. A row whose photo is loading swaps its placeholder, and
+     * one showing its photo keeps it.
+     */
+    private void updateLetterTiles() {
+        if (getView() == null) {
+            return;
+        }
+        final ListView listView = getListView();
+        for (int i = 0; i < listView.getChildCount(); i++) {
+            final Object tag = listView.getChildAt(i).getTag();
+            if (tag instanceof ContactsAdapter.ViewHolder) {
+                final ContactsAdapter.ViewHolder holder = (ContactsAdapter.ViewHolder) tag;
+                if (holder.waitingForTile) {
+                    mAdapter.bindPhoto(holder);
+                }
+            }
+        }
+    }
 
-    private Bitmap loadContactPhotoThumbnail(String photoData, int imageSize) {
+    private void closeSearchCursor() {
+        if (mSearchCursor != null) {
+            mSearchCursor.close();
+            mSearchCursor = null;
+        }
+    }
 
-        if (!isAdded() || getActivity() == null) {
-            return null;
+    private void closePreloadedCursor() {
+        if (mPreloadedCursor != null) {
+            mPreloadedCursor.close();
+            mPreloadedCursor = null;
         }
+    }
 
 
-        AssetFileDescriptor afd = null;
+    /**
+     * Creates the image loader for the list's thumbnails. {@link ContactsPreloader} warms the
+     * cache with one made here too, so its images are found under the same keys.
+     */
+    static ImageLoader createImageLoader(Activity activity) {
+        final ImageLoader imageLoader = new ImageLoader(activity,
+                getListPreferredItemHeight(activity), new ImageLoader.ImageSource() {
+                    @Override
+                    public Uri[] getUris(Object data) {
+                        return new Uri[] {getThumbnailUri((String) data)};
+                    }
+                });
 
+        // Set a placeholder loading image for the image loader
+        imageLoader.setLoadingImage(R.drawable.ic_contact_picture_holo_light);
 
-        try {
-            Uri thumbUri;
-            // If Android 3.0 or later, converts the Uri passed as a string to a Uri object.
-            if (Utils.hasHoneycomb()) {
-                thumbUri = Uri.parse(photoData);
-            } else {
+        // Thumbnails are decoded at exactly the row's size, so many more fit in the cache
+        imageLoader.setExactSizeDecoding(true);
 
-                final Uri contactUri = Uri.withAppendedPath(Contacts.CONTENT_URI, photoData);
+        // Add a cache to the image loader
+        imageLoader.addImageCache(activity);
+
+        // Every row's thumbnail is the same size, so they can be read back from the thumbnail
+        // pack without decoding
+        imageLoader.setUseThumbnailPack(true);
+
+        // They could also share a few atlas pages rather than a bitmap each, but every
+        // thumbnail added re-uploads a whole page texture, so that stays off until it has been
+        // measured against a bitmap per contact. The atlas.page_uploads metrics in dumpsys
+        // measure it in debug builds that switch it on.
+        imageLoader.setUseThumbnailAtlas(useThumbnailAtlas(activity));
+        return imageLoader;
+    }
 
+    /**
+     * Returns true if a debug build has had the thumbnail atlas switched on from the menu.
+     */
+    private static boolean useThumbnailAtlas(Context context) {
+        return BuildConfig.DEBUG && PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_USE_THUMBNAIL_ATLAS, false);
+    }
 
-                thumbUri = Uri.withAppendedPath(contactUri, Photo.CONTENT_DIRECTORY);
-            }
+    static int getListPreferredItemHeight(Activity activity) {
+        final TypedValue typedValue = new TypedValue();
 
-            afd = getActivity().getContentResolver().openAssetFileDescriptor(thumbUri, "r");
+        // Resolve list item preferred height theme attribute into typedValue
+        activity.getTheme().resolveAttribute(
+                android.R.attr.listPreferredItemHeight, typedValue, true);
 
+        // Create a new DisplayMetrics object
+        final DisplayMetrics metrics = new android.util.DisplayMetrics();
 
-            FileDescriptor fileDescriptor = afd.getFileDescriptor();
+        // Populate the DisplayMetrics
+        activity.getWindowManager().getDefaultDisplay().getMetrics(metrics);
 
-            if (fileDescriptor != null) {
 
-                return ImageLoader.decodeSampledBitmapFromDescriptor(
-                        fileDescriptor, imageSize, imageSize);
-            }
-        } catch (FileNotFoundException e) {
+        return (int) typedValue.getDimension(metrics);
+    }
 
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "Contact photo thumbnail not found for contact " + photoData
-                        + ": " + e.toString());
-            }
-        } finally {
-            // If an AssetFileDescriptor was returned, try to close it
-            if (afd != null) {
-                try {
-                    afd.close();
-                } catch (IOException e) {
 
-                }
-            }
+    /**
+     * Returns the Uri of a contact's thumbnail from the photo data in the cursor, see
+     * {@link #getPhotoData}.
+     */
+    private static Uri getThumbnailUri(String photoData) {
+        // If Android 3.0 or later, converts the Uri passed as a string to a Uri object.
+        if (Utils.hasHoneycomb()) {
+            return Uri.parse(photoData);
         }
-
-        // If the decoding failed, returns null
-        return null;
+        final Uri contactUri = Uri.withAppendedPath(Contacts.CONTENT_URI, photoData);
+        return Uri.withAppendedPath(contactUri, Photo.CONTENT_DIRECTORY);
     }
 
 
@@ -509,6 +739,7 @@ public class ContactsListFragment extends ListFragment implements
         private LayoutInflater mInflater; // Stores the layout inflater
         private AlphabetIndexer mAlphabetIndexer; // Stores the AlphabetIndexer instance
         private TextAppearanceSpan highlightTextSpan; // Stores the highlight text appearance style
+        private SearchMatcher mSearchMatcher; // Finds the search term in names, to highlight it
 
 
         public ContactsAdapter(Context context) {
@@ -528,12 +759,18 @@ public class ContactsListFragment extends ListFragment implements
         }
 
 
-        private int indexOfSearchQuery(String displayName) {
-            if (!TextUtils.isEmpty(mSearchTerm)) {
-                return displayName.toLowerCase(Locale.getDefault()).indexOf(
-                        mSearchTerm.toLowerCase(Locale.getDefault()));
+        /**
+         * Returns a matcher for the current search term, or null if there is none. The matcher
+         * is kept for as long as the term doesn't change.
+         */
+        private SearchMatcher getSearchMatcher() {
+            if (TextUtils.isEmpty(mSearchTerm)) {
+                return null;
+            }
+            if (mSearchMatcher == null || !mSearchTerm.equals(mSearchMatcher.getSearchTerm())) {
+                mSearchMatcher = new SearchMatcher(mSearchTerm);
             }
-            return -1;
+            return mSearchMatcher;
         }
 
 
@@ -562,13 +799,12 @@ public class ContactsListFragment extends ListFragment implements
             final ViewHolder holder = (ViewHolder) view.getTag();
 
 
-            final String photoUri = cursor.getString(ContactsQuery.PHOTO_THUMBNAIL_DATA);
-
             final String displayName = cursor.getString(ContactsQuery.DISPLAY_NAME);
 
-            final int startIndex = indexOfSearchQuery(displayName);
+            // Matches ignoring case and accents, as the search did
+            final SearchMatcher matcher = getSearchMatcher();
 
-            if (startIndex == -1) {
+            if (matcher == null || !matcher.find(displayName)) {
 
                 holder.text1.setText(displayName);
 
@@ -584,8 +820,8 @@ public class ContactsListFragment extends ListFragment implements
                 final SpannableString highlightedName = new SpannableString(displayName);
 
 
-                highlightedName.setSpan(highlightTextSpan, startIndex,
-                        startIndex + mSearchTerm.length(), 0);
+                highlightedName.setSpan(highlightTextSpan, matcher.getMatchStart(),
+                        matcher.getMatchEnd(), 0);
 
                 // Binds the SpannableString to the display name View object
                 holder.text1.setText(highlightedName);
@@ -603,7 +839,26 @@ public class ContactsListFragment extends ListFragment implements
             holder.icon.assignContactUri(contactUri);
 
 
-            mImageLoader.loadImage(photoUri, holder.icon);
+            holder.contactId = cursor.getLong(ContactsQuery.ID);
+            holder.photoId = cursor.getLong(ContactsQuery.PHOTO_ID);
+            holder.photoData = getPhotoData(cursor);
+            holder.displayName = displayName;
+            bindPhoto(holder);
+        }
+
+        /**
+         * Shows the contact's letter tile until their photo loads, or for good if they have
+         * none. If the tile isn't rendered yet, the row is bound again once it is, see
+         * {@link #updateLetterTiles()}.
+         */
+        void bindPhoto(ViewHolder holder) {
+            final Bitmap letterTile =
+                    mLetterTiles.getTile(holder.displayName, mImageLoader.getImageSize());
+            holder.waitingForTile = letterTile == null;
+            // Looks the thumbnail up by contact and photo id, which costs no allocation when
+            // it's already in memory
+            mImageLoader.loadContactImage(holder.contactId, holder.photoId, holder.photoData,
+                    holder.icon, letterTile);
         }
 
 
@@ -652,13 +907,20 @@ public class ContactsListFragment extends ListFragment implements
             TextView text1;
             TextView text2;
             QuickContactBadge icon;
+
+            // What the photo was last bound to, so it can be bound again on its own
+            long contactId;
+            long photoId;
+            String photoData;
+            String displayName;
+            boolean waitingForTile;
         }
     }
 
 
     public interface OnContactsInteractionListener {
 
-        public void onContactSelected(Uri contactUri);
+        public void onContactSelected(Uri contactUri, String thumbnailKey);
 
         public void onSelectionCleared();
     }
@@ -703,6 +965,9 @@ public class ContactsListFragment extends ListFragment implements
 
 
                 SORT_ORDER,
+
+                // Changes when the contact's photo does, so it's part of the thumbnail's key
+                Contacts.PHOTO_ID,
         };
 
 
@@ -711,5 +976,6 @@ public class ContactsListFragment extends ListFragment implements
         final static int DISPLAY_NAME = 2;
         final static int PHOTO_THUMBNAIL_DATA = 3;
         final static int SORT_KEY = 4;
+        final static int PHOTO_ID = 5;
     }
 }
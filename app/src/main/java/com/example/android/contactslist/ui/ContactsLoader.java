@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.ui;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.SystemClock;
+import android.support.v4.content.CursorLoader;
+import android.util.Log;
+
+import com.example.android.contactslist.BuildConfig;
+import com.example.android.contactslist.ui.ContactsListFragment.ContactsQuery;
+import com.example.android.contactslist.util.ContactSearchIndex;
+
+/**
+ * Loads the whole contacts list and, on the same background thread, builds a
+ * {@link ContactSearchIndex} over the rows it loaded, so searches can be answered from the
+ * rows shown without querying the provider a second time. Its results are
+ * {@link IndexedCursor}s.
+ */
+class ContactsLoader extends CursorLoader {
+    private static final String TAG = "ContactsLoader";
+
+    ContactsLoader(Context context) {
+        super(context, ContactsQuery.CONTENT_URI, ContactsQuery.PROJECTION,
+                ContactsQuery.SELECTION, null, ContactsQuery.SORT_ORDER);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final Cursor cursor = super.loadInBackground();
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return new IndexedCursor(cursor, buildSearchIndex(cursor));
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads every row of {@code cursor} into a search index, leaving the cursor before its first
+     * row again.
+     */
+    private static ContactSearchIndex buildSearchIndex(Cursor cursor) {
+        final long start = SystemClock.uptimeMillis();
+        final ContactSearchIndex.Builder builder =
+                new ContactSearchIndex.Builder(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            builder.add(cursor.getLong(ContactsQuery.ID),
+                    cursor.getString(ContactsQuery.LOOKUP_KEY),
+                    cursor.getString(ContactsQuery.DISPLAY_NAME),
+                    cursor.getString(ContactsQuery.PHOTO_THUMBNAIL_DATA),
+                    cursor.getString(ContactsQuery.SORT_KEY),
+                    cursor.getLong(ContactsQuery.PHOTO_ID));
+        }
+        cursor.moveToPosition(-1);
+        final ContactSearchIndex index = builder.build();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "buildSearchIndex - " + index.size() + " contacts in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+        return index;
+    }
+
+    /**
+     * A loaded cursor together with the search index built from its rows.
+     */
+    static class IndexedCursor extends CursorWrapper {
+        private final ContactSearchIndex mSearchIndex;
+
+        IndexedCursor(Cursor cursor, ContactSearchIndex searchIndex) {
+            super(cursor);
+            mSearchIndex = searchIndex;
+        }
+
+        ContactSearchIndex getSearchIndex() {
+            return mSearchIndex;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.ui;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import com.example.android.contactslist.BuildConfig;
+import com.example.android.contactslist.ui.ContactsListFragment.ContactsQuery;
+import com.example.android.contactslist.util.ImageKey;
+import com.example.android.contactslist.util.ImageLoader;
+import com.example.android.contactslist.util.PriorityExecutor;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gets the contacts list ready while the splash screen shows. The contacts query runs first, and
+ * the thumbnails of the first screen of rows are then decoded into the image cache in parallel.
+ * The queried cursor is held until {@link ContactsListFragment} takes it, so the list can show
+ * its first page without waiting for its own loader.
+ */
+public class ContactsPreloader {
+    private static final String TAG = "ContactsPreloader";
+
+    /**
+     * Told on the UI thread once the first page is ready to show.
+     */
+    public interface OnFirstPageReadyListener {
+        public void onFirstPageReady();
+    }
+
+    private static final Object sLock = new Object();
+
+    // The preload in progress or waiting to be taken, guarded by sLock
+    private static ContactsPreloader sPreload;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ContentResolver mContentResolver;
+    private final ImageLoader mImageLoader;
+    private final int mPageSize;
+    private final OnFirstPageReadyListener mListener;
+    private final PriorityExecutor mExecutor;
+    private final long mStartMillis = SystemClock.uptimeMillis();
+
+    // Guarded by sLock. Once discarded, a cursor that arrives late is closed straight away.
+    private Cursor mCursor;
+    private boolean mDiscarded;
+
+    private ContactsPreloader(Activity activity, OnFirstPageReadyListener listener) {
+        mContentResolver = activity.getApplicationContext().getContentResolver();
+        mImageLoader = ContactsListFragment.createImageLoader(activity);
+        mListener = listener;
+
+        // Enough rows to fill the screen, plus the one partly showing at the bottom
+        final DisplayMetrics metrics = new DisplayMetrics();
+        activity.getWindowManager().getDefaultDisplay().getMetrics(metrics);
+        mPageSize = metrics.heightPixels / Math.max(1, mImageLoader.getImageSize()) + 1;
+
+        mExecutor = new PriorityExecutor(TAG, PriorityExecutor.getDefaultThreadCount(),
+                mPageSize + 1);
+    }
+
+    /**
+     * Starts preloading, replacing any earlier preload that wasn't taken. Call on the UI thread.
+     */
+    public static void start(Activity activity, OnFirstPageReadyListener listener) {
+        final ContactsPreloader preload = new ContactsPreloader(activity, listener);
+        synchronized (sLock) {
+            if (sPreload != null) {
+                sPreload.discardLocked();
+            }
+            sPreload = preload;
+        }
+        preload.mExecutor.execute(preload.new QueryJob(), PriorityExecutor.PRIORITY_HIGH);
+    }
+
+    /**
+     * Returns the preloaded contacts cursor, or null if there is none or it isn't ready yet, in
+     * which case the preload is dropped. Either way the preload is over. The caller owns the
+     * cursor, and must close it once done.
+     */
+    public static Cursor takeCursor() {
+        synchronized (sLock) {
+            if (sPreload == null) {
+                return null;
+            }
+            final Cursor cursor = sPreload.mCursor;
+            sPreload.mCursor = null;
+            sPreload.discardLocked();
+            sPreload = null;
+            return cursor;
+        }
+    }
+
+    /**
+     * Drops the preload, closing its cursor, for when the list isn't going to be shown after all.
+     * The thumbnails already decoded stay in the cache.
+     */
+    public static void discard() {
+        synchronized (sLock) {
+            if (sPreload != null) {
+                sPreload.discardLocked();
+                sPreload = null;
+            }
+        }
+    }
+
+    private void discardLocked() {
+        mDiscarded = true;
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private boolean isDiscarded() {
+        synchronized (sLock) {
+            return mDiscarded;
+        }
+    }
+
+    private void onFirstPageReady() {
+        mExecutor.shutdown();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "first page ready in " + (SystemClock.uptimeMillis() - mStartMillis)
+                    + "ms");
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isDiscarded()) {
+                    mListener.onFirstPageReady();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the list's query and fills the cursor's window, then queues a decode for each photo
+     * in the first page.
+     */
+    private class QueryJob extends PriorityExecutor.Job {
+        @Override
+        public void run() {
+            if (isDiscarded()) {
+                return;
+            }
+            final Cursor cursor = mContentResolver.query(ContactsQuery.CONTENT_URI,
+                    ContactsQuery.PROJECTION, ContactsQuery.SELECTION, null,
+                    ContactsQuery.SORT_ORDER);
+            if (cursor == null) {
+                onFirstPageReady();
+                return;
+            }
+            // Counting reads the rows into the cursor's window here rather than on the UI thread
+            cursor.getCount();
+
+            final int rows = Math.min(mPageSize, cursor.getCount());
+            final ImageKey[] keys = new ImageKey[rows];
+            final String[] photos = new String[rows];
+            int photoCount = 0;
+            for (int i = 0; i < rows && cursor.moveToPosition(i); i++) {
+                final String photoData = ContactsListFragment.getPhotoData(cursor);
+                if (photoData != null) {
+                    keys[photoCount] = mImageLoader.getContactKey(
+                            cursor.getLong(ContactsQuery.ID),
+                            cursor.getLong(ContactsQuery.PHOTO_ID));
+                    photos[photoCount] = photoData;
+                    photoCount++;
+                }
+            }
+
+            synchronized (sLock) {
+                if (mDiscarded) {
+                    cursor.close();
+                    return;
+                }
+                mCursor = cursor;
+            }
+
+            if (photoCount == 0) {
+                onFirstPageReady();
+                return;
+            }
+            // The executor runs the newest job first, so queue from the bottom row up
+            final AtomicInteger remaining = new AtomicInteger(photoCount);
+            try {
+                for (int i = photoCount - 1; i >= 0; i--) {
+                    mExecutor.execute(new DecodeJob(keys[i], photos[i], remaining),
+                            PriorityExecutor.PRIORITY_NORMAL);
+                }
+            } catch (RejectedExecutionException e) {
+                // Discarded while queueing, and the executor has been shut down
+            }
+        }
+    }
+
+    /**
+     * Decodes one thumbnail into the cache, and reports the first page ready after the last.
+     */
+    private class DecodeJob extends PriorityExecutor.Job {
+        private final ImageKey mKey;
+        private final String mPhotoData;
+        private final AtomicInteger mRemaining;
+
+        DecodeJob(ImageKey key, String photoData, AtomicInteger remaining) {
+            mKey = key;
+            mPhotoData = photoData;
+            mRemaining = remaining;
+        }
+
+        @Override
+        public void run() {
+            if (!isDiscarded()) {
+                mImageLoader.loadIntoCache(mKey, mPhotoData);
+            }
+            if (mRemaining.decrementAndGet() == 0) {
+                onFirstPageReady();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.ui;
+
+import android.database.AbstractCursor;
+
+import com.example.android.contactslist.ui.ContactsListFragment.ContactsQuery;
+import com.example.android.contactslist.util.ContactSearchIndex;
+
+/**
+ * A cursor over rows of a {@link ContactSearchIndex}, with the columns of
+ * {@link ContactsQuery#PROJECTION}, so the list's adapter binds search results from the index
+ * just as it binds the provider's. Reading it touches nothing but the index.
+ */
+class SearchIndexCursor extends AbstractCursor {
+    private final ContactSearchIndex mIndex;
+    private final int[] mRows;
+
+    /**
+     * @param rows The index rows to show, in order, such as the result of a search.
+     */
+    SearchIndexCursor(ContactSearchIndex index, int[] rows) {
+        mIndex = index;
+        mRows = rows;
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return ContactsQuery.PROJECTION;
+    }
+
+    @Override
+    public String getString(int column) {
+        final int row = mRows[getPosition()];
+        switch (column) {
+            case ContactsQuery.ID:
+                return String.valueOf(mIndex.getContactId(row));
+            case ContactsQuery.LOOKUP_KEY:
+                return mIndex.getLookupKey(row);
+            case ContactsQuery.DISPLAY_NAME:
+                return mIndex.getDisplayName(row);
+            case ContactsQuery.PHOTO_THUMBNAIL_DATA:
+                return mIndex.getPhotoData(row);
+            case ContactsQuery.SORT_KEY:
+                return mIndex.getSortKey(row);
+            case ContactsQuery.PHOTO_ID:
+                return String.valueOf(mIndex.getPhotoId(row));
+        }
+        throw new IllegalArgumentException("Unknown column " + column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        final int row = mRows[getPosition()];
+        switch (column) {
+            case ContactsQuery.ID:
+                return mIndex.getContactId(row);
+            case ContactsQuery.PHOTO_ID:
+                return mIndex.getPhotoId(row);
+        }
+        final String value = getString(column);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getString(column) == null;
+    }
+}
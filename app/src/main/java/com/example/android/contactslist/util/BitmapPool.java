@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of bitmaps that have left the memory cache and can be decoded into again through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}, instead of allocating a new one.
+ *
+ * Bitmaps are bucketed by what the platform will accept for reuse: before KitKat a bitmap can
+ * only be reused for an image of exactly the same dimensions and config, from KitKat on any
+ * bitmap with a large enough allocation will do.
+ */
+public class BitmapPool {
+    // From KitKat on, don't hand out a bitmap more than this many times larger than needed, or
+    // the memory saved by reusing it is wasted by the slack
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private int mMaxSize;
+    private final boolean mMatchBySize;
+    private final TreeMap<Long, ArrayList<Bitmap>> mBuckets =
+            new TreeMap<Long, ArrayList<Bitmap>>();
+    private final LinkedList<Bitmap> mInsertionOrder = new LinkedList<Bitmap>();
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize The maximum number of bytes the pooled bitmaps may hold.
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+        mMatchBySize = Utils.hasKitKat();
+    }
+
+    /**
+     * Returns true if the platform supports decoding into an existing bitmap.
+     */
+    public static boolean isSupported() {
+        return Utils.hasHoneycomb();
+    }
+
+    /**
+     * Adds a bitmap that is no longer used to the pool. Immutable and recycled bitmaps are
+     * ignored, as the decoder can't reuse them.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        final int size = getAllocationSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        final long key = mMatchBySize
+                ? size : getDimensionKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(2);
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mInsertionOrder.addLast(bitmap);
+        mSize += size;
+        trimToSize();
+    }
+
+    /**
+     * Takes a bitmap out of the pool that an image of the given decoded dimensions and config
+     * can be decoded into, or returns null if there is none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported()) {
+            return null;
+        }
+
+        Long key;
+        if (mMatchBySize) {
+            final long required = (long) width * height * getBytesPerPixel(config);
+            key = mBuckets.ceilingKey(required);
+            if (key != null && key > required * MAX_SIZE_MULTIPLE) {
+                key = null;
+            }
+        } else {
+            key = getDimensionKey(width, height, config);
+            if (!mBuckets.containsKey(key)) {
+                key = null;
+            }
+        }
+
+        if (key == null) {
+            mMissCount++;
+            return null;
+        }
+
+        final ArrayList<Bitmap> bucket = mBuckets.get(key);
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mInsertionOrder.remove(bitmap);
+        mSize -= getAllocationSize(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Returns a mutable bitmap of exactly the given dimensions and config to draw into: one from
+     * the pool if there is one that fits, reconfigured from KitKat on, or else a new one.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        final Bitmap pooled = get(width, height, config);
+        if (pooled != null) {
+            if (pooled.getWidth() == width && pooled.getHeight() == height
+                    && pooled.getConfig() == config) {
+                return pooled;
+            }
+            // From KitKat the pool matches by size, and the bitmap can take on these dimensions
+            if (Utils.hasKitKat()) {
+                pooled.reconfigure(width, height, config);
+                return pooled;
+            }
+            put(pooled);
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Drops every pooled bitmap.
+     */
+    public synchronized void clear() {
+        mEvictionCount += mInsertionOrder.size();
+        mBuckets.clear();
+        mInsertionOrder.clear();
+        mSize = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes the pool may hold, dropping the oldest bitmaps if it
+     * no longer fits.
+     */
+    public synchronized void resize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize();
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    private void trimToSize() {
+        while (mSize > mMaxSize && !mInsertionOrder.isEmpty()) {
+            final Bitmap eldest = mInsertionOrder.removeFirst();
+            for (Map.Entry<Long, ArrayList<Bitmap>> entry : mBuckets.entrySet()) {
+                if (entry.getValue().remove(eldest)) {
+                    if (entry.getValue().isEmpty()) {
+                        mBuckets.remove(entry.getKey());
+                    }
+                    break;
+                }
+            }
+            mSize -= getAllocationSize(eldest);
+            mEvictionCount++;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return ImageCache.getBitmapSize(bitmap);
+    }
+
+    private static long getDimensionKey(int width, int height, Bitmap.Config config) {
+        final int configIndex = config != null ? config.ordinal() : 0xFF;
+        return ((long) width << 32) | ((long) (height & 0xFFFFFF) << 8) | configIndex;
+    }
+
+    /**
+     * Returns the number of bytes used by one pixel of the given config.
+     */
+    @SuppressWarnings("deprecation")
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
+
+/**
+ * Crops an image to the largest circle that fits its center, leaving the corners transparent.
+ */
+public class CircleCropTransform implements ImageLoader.Transform {
+
+    @Override
+    public String getName() {
+        return "circle";
+    }
+
+    @Override
+    public Bitmap transform(Bitmap source, BitmapPool bitmapPool) {
+        final int size = Math.min(source.getWidth(), source.getHeight());
+        Bitmap result = bitmapPool != null
+                ? bitmapPool.get(size, size, Bitmap.Config.ARGB_8888) : null;
+        if (result != null) {
+            result.eraseColor(0);
+        } else {
+            result = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        }
+
+        // Center the source on the circle
+        final BitmapShader shader =
+                new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        final Matrix matrix = new Matrix();
+        matrix.setTranslate((size - source.getWidth()) / 2f, (size - source.getHeight()) / 2f);
+        shader.setLocalMatrix(matrix);
+
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setShader(shader);
+        final float radius = size / 2f;
+        new Canvas(result).drawCircle(radius, radius, radius, paint);
+
+        if (bitmapPool != null) {
+            bitmapPool.put(source);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,671 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * An in-memory index over contacts' display names that answers searches without a provider
+ * query. It holds each contact's list row as well, so results can be shown straight from it.
+ * Rows keep the order they were added in, which is the list's sort order, and results come back
+ * in that order.
+ *
+ * Names are lower-cased, with accents removed as the provider's filter ignores them too, and
+ * packed into one char array, each followed by a 0. Two structures sit over it, both in
+ * primitive arrays:
+ * <ul>
+ * <li>The offset of every word start, sorted by the text that follows it. A word prefix is a
+ * binary search for the range of words starting with it.</li>
+ * <li>For every trigram of the names, by hash, the rows containing it. A substring of three or
+ * more characters is only looked for in the rows listed for its rarest trigram; shorter ones
+ * are scanned for.</li>
+ * </ul>
+ * Immutable once built, so it can be searched from any thread. Kept free of Android types so it
+ * can be benchmarked on a plain JVM.
+ */
+public final class ContactSearchIndex {
+    private static final int[] NO_ROWS = new int[0];
+
+    // Characters from here on are folded to their unaccented forms in FOLDS
+    private static final char FOLD_FIRST = '\u00c0';
+
+    // Without java.text.Normalizer, the unaccented, lower-cased forms of U+00C0 to U+017F,
+    // Latin-1 and Latin Extended-A
+    private static final String LATIN_FOLDS = ""
+            + "aaaaaa\u00e6ceeeeiiii\u00f0nooooo\u00d7\u00f8uuuuy\u00fe\u00df"
+            + "aaaaaa\u00e6ceeeeiiii\u00f0nooooo\u00f7\u00f8uuuuy\u00fey"
+            + "aaaaaaccccccccdd\u0111\u0111eeeeeeeeeegggg"
+            + "gggghh\u0127\u0127iiiiiiiii\u0131\u0133\u0133jjkk\u0138llllll\u0140"
+            + "\u0140\u0142\u0142nnnnnn\u0149\u014b\u014boooooo\u0153\u0153rrrrrrssssss"
+            + "sstttt\u0167\u0167uuuuuuuuuuuuwwyyyzzzzzz\u017f";
+
+    // The unaccented form of each character from FOLD_FIRST on
+    private static final char[] FOLDS = buildFolds();
+
+    // The contacts' list rows
+    private final long[] mContactIds;
+    private final String[] mLookupKeys;
+    private final String[] mDisplayNames;
+    private final String[] mPhotoData;
+    private final String[] mSortKeys;
+    private final long[] mPhotoIds;
+
+    // Normalized names, each ending with a 0, and where each row's name starts. The extra
+    // last start is the end of the text, which may be followed by unused space.
+    private final char[] mText;
+    private final int[] mNameStarts;
+
+    // Offsets of word starts in mText, sorted by the text from there to the end of the name
+    private final int[] mWords;
+
+    // Trigram hashes in ascending order, where each one's rows start in mGramRows, and the rows
+    // containing each one in ascending order
+    private final int[] mGrams;
+    private final int[] mGramStarts;
+    private final int[] mGramRows;
+
+    private ContactSearchIndex(Builder builder) {
+        final int count = builder.mCount;
+        mContactIds = copyOf(builder.mContactIds, count);
+        mLookupKeys = copyOf(builder.mLookupKeys, count);
+        mDisplayNames = copyOf(builder.mDisplayNames, count);
+        mPhotoData = copyOf(builder.mPhotoData, count);
+        mSortKeys = copyOf(builder.mSortKeys, count);
+        mPhotoIds = copyOf(builder.mPhotoIds, count);
+
+        // Pack the normalized names, counting word starts and trigrams on the way. Dropping
+        // combining marks can only shorten a name, so its length is enough room.
+        int length = 0;
+        for (int row = 0; row < count; row++) {
+            length += (mDisplayNames[row] != null ? mDisplayNames[row].length() : 0) + 1;
+        }
+        mText = new char[length];
+        mNameStarts = new int[count + 1];
+        int offset = 0;
+        int wordCount = 0;
+        int gramCount = 0;
+        for (int row = 0; row < count; row++) {
+            mNameStarts[row] = offset;
+            final String name = mDisplayNames[row];
+            final int nameLength = name != null ? name.length() : 0;
+            for (int i = 0; i < nameLength; i++) {
+                if (isMark(name.charAt(i))) {
+                    continue;
+                }
+                final char c = normalize(name.charAt(i));
+                if (isWordStart(mText, mNameStarts[row], offset, c)) {
+                    wordCount++;
+                }
+                mText[offset++] = c;
+            }
+            mText[offset++] = 0;
+            gramCount += Math.max(0, offset - 3 - mNameStarts[row]);
+        }
+        mNameStarts[count] = offset;
+
+        mWords = new int[wordCount];
+        int word = 0;
+        for (int row = 0; row < count; row++) {
+            for (int i = mNameStarts[row]; i < mNameStarts[row + 1] - 1; i++) {
+                if (isWordStart(mText, mNameStarts[row], i, mText[i])) {
+                    mWords[word++] = i;
+                }
+            }
+        }
+        sortWords(mWords, new int[wordCount], 0, wordCount);
+
+        // Trigram hash and row pairs, sorted so each hash's rows are together and ascending
+        final long[] pairs = new long[gramCount];
+        int pairCount = 0;
+        for (int row = 0; row < count; row++) {
+            final int end = mNameStarts[row + 1] - 1;
+            for (int i = mNameStarts[row]; i + 3 <= end; i++) {
+                pairs[pairCount++] = ((long) gramAt(mText, i) << 32) | row;
+            }
+        }
+        Arrays.sort(pairs, 0, pairCount);
+
+        int gramKinds = 0;
+        int rowCount = 0;
+        for (int i = 0; i < pairCount; i++) {
+            if (i == 0 || pairs[i] != pairs[i - 1]) {
+                rowCount++;
+                if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+                    gramKinds++;
+                }
+            }
+        }
+        mGrams = new int[gramKinds];
+        mGramStarts = new int[gramKinds + 1];
+        mGramRows = new int[rowCount];
+        int kind = -1;
+        int next = 0;
+        for (int i = 0; i < pairCount; i++) {
+            if (i > 0 && pairs[i] == pairs[i - 1]) {
+                continue;
+            }
+            final int gram = (int) (pairs[i] >> 32);
+            if (kind < 0 || mGrams[kind] != gram) {
+                kind++;
+                mGrams[kind] = gram;
+                mGramStarts[kind] = next;
+            }
+            mGramRows[next++] = (int) pairs[i];
+        }
+        mGramStarts[gramKinds] = next;
+    }
+
+    /**
+     * Returns the number of contacts in the index.
+     */
+    public int size() {
+        return mContactIds.length;
+    }
+
+    public long getContactId(int row) {
+        return mContactIds[row];
+    }
+
+    public String getLookupKey(int row) {
+        return mLookupKeys[row];
+    }
+
+    public String getDisplayName(int row) {
+        return mDisplayNames[row];
+    }
+
+    public String getPhotoData(int row) {
+        return mPhotoData[row];
+    }
+
+    public String getSortKey(int row) {
+        return mSortKeys[row];
+    }
+
+    public long getPhotoId(int row) {
+        return mPhotoIds[row];
+    }
+
+    /**
+     * Returns the rows of the contacts with a word in their name starting with each word of
+     * {@code query}, ignoring case and accents, in ascending order. A query without words
+     * matches every contact.
+     */
+    public int[] findWordPrefixes(String query) {
+        final char[][] tokens = tokenize(query);
+        if (tokens.length == 0) {
+            return allRows();
+        }
+
+        // Look the longest word up, as it's likely to match the fewest names, and check the
+        // others against each of those names
+        int longest = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].length > tokens[longest].length) {
+                longest = i;
+            }
+        }
+        final char[] token = tokens[longest];
+        final int first = lowerBound(token);
+        int last = first;
+        while (last < mWords.length && compareWord(mWords[last], token) == 0) {
+            last++;
+        }
+
+        final int[] rows = new int[last - first];
+        for (int i = first; i < last; i++) {
+            rows[i - first] = rowOf(mWords[i]);
+        }
+        Arrays.sort(rows);
+
+        int count = 0;
+        for (int i = 0; i < rows.length; i++) {
+            final int row = rows[i];
+            if (count > 0 && rows[count - 1] == row) {
+                continue;
+            }
+            if (hasWordPrefixes(row, tokens, longest)) {
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? rows : copyOf(rows, count);
+    }
+
+    /**
+     * Returns those of {@code rows} whose contact has a word in their name starting with each
+     * word of {@code query}, as {@link #findWordPrefixes} would, in the same order. Narrowing an
+     * earlier result this way is much cheaper than searching again when the query has only
+     * grown, see {@link #normalizeQuery}.
+     */
+    public int[] filterWordPrefixes(int[] rows, String query) {
+        final char[][] tokens = tokenize(query);
+        if (tokens.length == 0) {
+            return rows;
+        }
+        final int[] filtered = new int[rows.length];
+        int count = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (hasWordPrefixes(rows[i], tokens, -1)) {
+                filtered[count++] = rows[i];
+            }
+        }
+        return count == rows.length ? rows : copyOf(filtered, count);
+    }
+
+    /**
+     * Returns the words of a query as {@link #findWordPrefixes} sees them, lower-cased,
+     * unaccented and separated by single spaces. Queries with the same normalized form have the
+     * same result. If one normalized query starts with another, its result is a subset of the
+     * other's, as each of its words starts with the corresponding word of the other or is an
+     * extra word.
+     */
+    public static String normalizeQuery(String query) {
+        final char[][] tokens = tokenize(query);
+        final StringBuilder normalized = new StringBuilder(query != null ? query.length() : 0);
+        for (int i = 0; i < tokens.length; i++) {
+            if (i > 0) {
+                normalized.append(' ');
+            }
+            normalized.append(tokens[i]);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the rows of the contacts whose name contains {@code term}, ignoring case and
+     * accents, in ascending order. An empty term matches every contact.
+     */
+    public int[] findContaining(String term) {
+        final char[] chars = normalize(term);
+        if (chars.length == 0) {
+            return allRows();
+        }
+        if (chars.length < 3) {
+            return scan(chars);
+        }
+
+        // Only the rows with the term's rarest trigram can contain it
+        int candidates = -1;
+        for (int i = 0; i + 3 <= chars.length; i++) {
+            final int kind = Arrays.binarySearch(mGrams, gramAt(chars, i));
+            if (kind < 0) {
+                return NO_ROWS;
+            }
+            if (candidates < 0 || postingLength(kind) < postingLength(candidates)) {
+                candidates = kind;
+            }
+        }
+
+        final int start = mGramStarts[candidates];
+        final int[] rows = new int[postingLength(candidates)];
+        int count = 0;
+        for (int i = 0; i < rows.length; i++) {
+            final int row = mGramRows[start + i];
+            // The hash may be shared with other trigrams, so check the name
+            if (contains(row, chars)) {
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? rows : copyOf(rows, count);
+    }
+
+    private int postingLength(int kind) {
+        return mGramStarts[kind + 1] - mGramStarts[kind];
+    }
+
+    private int[] allRows() {
+        final int[] rows = new int[size()];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = row;
+        }
+        return rows;
+    }
+
+    private int[] scan(char[] chars) {
+        int[] rows = new int[16];
+        int count = 0;
+        for (int row = 0; row < size(); row++) {
+            if (contains(row, chars)) {
+                if (count == rows.length) {
+                    rows = copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return copyOf(rows, count);
+    }
+
+    private boolean contains(int row, char[] chars) {
+        final int last = mNameStarts[row + 1] - 1 - chars.length;
+        for (int i = mNameStarts[row]; i <= last; i++) {
+            if (regionMatches(i, chars)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the row's name has a word starting with each token but {@code skip}, which
+     * the caller has already matched.
+     */
+    private boolean hasWordPrefixes(int row, char[][] tokens, int skip) {
+        final int start = mNameStarts[row];
+        final int end = mNameStarts[row + 1] - 1;
+        for (int t = 0; t < tokens.length; t++) {
+            if (t == skip) {
+                continue;
+            }
+            boolean found = false;
+            for (int i = start; i < end && !found; i++) {
+                found = isWordStart(mText, start, i, mText[i]) && end - i >= tokens[t].length
+                        && regionMatches(i, tokens[t]);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionMatches(int offset, char[] chars) {
+        for (int i = 0; i < chars.length; i++) {
+            if (mText[offset + i] != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the row whose name contains the text offset.
+     */
+    private int rowOf(int offset) {
+        int low = 0;
+        int high = mNameStarts.length - 2;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mNameStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index in mWords of the first word not sorting before {@code token}.
+     */
+    private int lowerBound(char[] token) {
+        int low = 0;
+        int high = mWords.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareWord(mWords[mid], token) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the text at {@code offset} with {@code token}, returning 0 if the text starts
+     * with it.
+     */
+    private int compareWord(int offset, char[] token) {
+        for (int i = 0; i < token.length; i++) {
+            final char c = mText[offset + i];
+            if (c != token[i]) {
+                return c < token[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares the text at two offsets up to the end of their names. The 0 ending each name
+     * sorts before any character, so a name's end is reached before reading past it.
+     */
+    private int compareSuffixes(int a, int b) {
+        while (true) {
+            final char ca = mText[a++];
+            final char cb = mText[b++];
+            if (ca != cb) {
+                return ca < cb ? -1 : 1;
+            }
+            if (ca == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Merge sorts {@code words[from, to)} by the text at each offset, using {@code scratch} of
+     * the same length, without boxing the offsets for a Comparator.
+     */
+    private void sortWords(int[] words, int[] scratch, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        final int mid = (from + to) >>> 1;
+        sortWords(words, scratch, from, mid);
+        sortWords(words, scratch, mid, to);
+        if (compareSuffixes(words[mid - 1], words[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(words, from, scratch, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to
+                    || (left < mid && compareSuffixes(scratch[left], scratch[right]) <= 0)) {
+                words[i] = scratch[left++];
+            } else {
+                words[i] = scratch[right++];
+            }
+        }
+    }
+
+    private static boolean isWordStart(char[] text, int nameStart, int offset, char c) {
+        return Character.isLetterOrDigit(c)
+                && (offset == nameStart || !Character.isLetterOrDigit(text[offset - 1]));
+    }
+
+    private static int gramAt(char[] chars, int offset) {
+        return ((chars[offset] * 31) + chars[offset + 1]) * 31 + chars[offset + 2];
+    }
+
+    /**
+     * Returns a character lower-cased and without its accent. Folding one character to one
+     * keeps offsets into the name, except for separate combining marks, see {@link #isMark}.
+     */
+    static char normalize(char c) {
+        final char lower = Character.toLowerCase(c);
+        final int fold = lower - FOLD_FIRST;
+        return fold >= 0 && fold < FOLDS.length ? FOLDS[fold] : lower;
+    }
+
+    /**
+     * Returns true for a combining mark, such as an accent in a decomposed name, which is
+     * dropped when normalizing.
+     */
+    static boolean isMark(char c) {
+        return Character.getType(c) == Character.NON_SPACING_MARK;
+    }
+
+    /**
+     * Returns a string's characters normalized, with any combining marks dropped.
+     */
+    static char[] normalize(String s) {
+        final int length = s != null ? s.length() : 0;
+        final char[] chars = new char[length];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (!isMark(s.charAt(i))) {
+                chars[count++] = normalize(s.charAt(i));
+            }
+        }
+        if (count == length) {
+            return chars;
+        }
+        final char[] copy = new char[count];
+        System.arraycopy(chars, 0, copy, 0, count);
+        return copy;
+    }
+
+    private static char[] buildFolds() {
+        try {
+            return Decomposer.folds(FOLD_FIRST, '\u1fff');
+        } catch (LinkageError e) {
+            // No java.text.Normalizer before Gingerbread
+            return LATIN_FOLDS.toCharArray();
+        }
+    }
+
+    /**
+     * Folds characters by decomposing them with {@link Normalizer}, which needs Gingerbread.
+     * Kept in its own class so only this fails to load on older versions.
+     */
+    private static final class Decomposer {
+        /**
+         * Returns the lower-cased base of each character from {@code first} to {@code last},
+         * or the character itself if it isn't a base followed by combining marks.
+         */
+        static char[] folds(char first, char last) {
+            final char[] folds = new char[last - first + 1];
+            for (int i = 0; i < folds.length; i++) {
+                final char c = (char) (first + i);
+                final String decomposed =
+                        Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+                char base = decomposed.length() > 1 ? decomposed.charAt(0) : c;
+                for (int j = 1; j < decomposed.length() && base != c; j++) {
+                    if (!isMark(decomposed.charAt(j))) {
+                        base = c;
+                    }
+                }
+                folds[i] = Character.toLowerCase(base);
+            }
+            return folds;
+        }
+    }
+
+    /**
+     * Splits a query into its normalized words.
+     */
+    private static char[][] tokenize(String query) {
+        final char[] chars = normalize(query);
+        int count = 0;
+        for (int i = 0; i < chars.length; i++) {
+            if (isWordStart(chars, 0, i, chars[i])) {
+                count++;
+            }
+        }
+        final char[][] tokens = new char[count][];
+        int token = 0;
+        for (int i = 0; i < chars.length; i++) {
+            if (isWordStart(chars, 0, i, chars[i])) {
+                int end = i;
+                while (end < chars.length && Character.isLetterOrDigit(chars[end])) {
+                    end++;
+                }
+                tokens[token] = new char[end - i];
+                System.arraycopy(chars, i, tokens[token], 0, end - i);
+                token++;
+            }
+        }
+        return tokens;
+    }
+
+    // Arrays.copyOf() needs Gingerbread
+
+    private static int[] copyOf(int[] array, int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        final long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    private static String[] copyOf(String[] array, int length) {
+        final String[] copy = new String[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+        return copy;
+    }
+
+    /**
+     * Collects contacts, in list order, and builds the index over them. Building sorts every
+     * word and trigram, so it should be done off the UI thread.
+     */
+    public static final class Builder {
+        private long[] mContactIds;
+        private String[] mLookupKeys;
+        private String[] mDisplayNames;
+        private String[] mPhotoData;
+        private String[] mSortKeys;
+        private long[] mPhotoIds;
+        private int mCount;
+
+        /**
+         * @param expectedSize How many contacts will be added, such as the query's row count.
+         */
+        public Builder(int expectedSize) {
+            final int capacity = Math.max(1, expectedSize);
+            mContactIds = new long[capacity];
+            mLookupKeys = new String[capacity];
+            mDisplayNames = new String[capacity];
+            mPhotoData = new String[capacity];
+            mSortKeys = new String[capacity];
+            mPhotoIds = new long[capacity];
+        }
+
+        /**
+         * Adds the next contact in list order.
+         */
+        public Builder add(long contactId, String lookupKey, String displayName,
+                String photoData, String sortKey, long photoId) {
+            if (mCount == mContactIds.length) {
+                final int capacity = mCount * 2;
+                mContactIds = copyOf(mContactIds, capacity);
+                mLookupKeys = copyOf(mLookupKeys, capacity);
+                mDisplayNames = copyOf(mDisplayNames, capacity);
+                mPhotoData = copyOf(mPhotoData, capacity);
+                mSortKeys = copyOf(mSortKeys, capacity);
+                mPhotoIds = copyOf(mPhotoIds, capacity);
+            }
+            mContactIds[mCount] = contactId;
+            mLookupKeys[mCount] = lookupKey;
+            mDisplayNames[mCount] = displayName;
+            mPhotoData[mCount] = photoData;
+            mSortKeys[mCount] = sortKey;
+            mPhotoIds[mCount] = photoId;
+            mCount++;
+            return this;
+        }
+
+        public ContactSearchIndex build() {
+            return new ContactSearchIndex(this);
+        }
+    }
+}
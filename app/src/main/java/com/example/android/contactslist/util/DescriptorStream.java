@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A buffered stream over the part of a file descriptor that holds an image, from the
+ * descriptor's start offset for its declared length. The stream is marked at the start so the
+ * header can be sniffed and the stream reset for the real decode without reading the descriptor
+ * twice. If more than {@link #MARK_LIMIT} bytes are read before the reset, seekable descriptors
+ * are re-read from the start offset instead.
+ *
+ * The descriptor itself is owned by the caller and is never closed here. To stop a decode
+ * reading it from another thread, {@link #cancel()} the stream rather than closing the
+ * descriptor, which the decode thread may still be using, and whose number could be handed to
+ * another open meanwhile.
+ */
+class DescriptorStream extends BufferedInputStream {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Enough to hold the header of any image the decoder only needs the bounds of, including a
+    // JPEG with a full 64KB EXIF block
+    static final int MARK_LIMIT = 128 * 1024;
+
+    private final FileInputStream mFileStream;
+    private final long mStartOffset;
+    private final long mLength;
+    private final boolean mSeekable;
+
+    // Shared with the streams rewind() returns, so cancelling one cancels them all
+    private final AtomicBoolean mCancelled;
+
+    /**
+     * Opens a stream over the image held by {@code afd}.
+     */
+    static DescriptorStream open(AssetFileDescriptor afd) {
+        return open(afd.getFileDescriptor(), afd.getStartOffset(), afd.getDeclaredLength());
+    }
+
+    /**
+     * Opens a stream over the rest of {@code fileDescriptor}, from its current position.
+     */
+    static DescriptorStream open(FileDescriptor fileDescriptor) {
+        long position;
+        try {
+            position = new FileInputStream(fileDescriptor).getChannel().position();
+        } catch (IOException e) {
+            position = 0;
+        }
+        return open(fileDescriptor, position, -1);
+    }
+
+    /**
+     * Opens a stream over {@code length} bytes of {@code fileDescriptor} starting at
+     * {@code startOffset}. A negative length means "until the end of the file".
+     */
+    static DescriptorStream open(FileDescriptor fileDescriptor, long startOffset, long length) {
+        // FileInputStream doesn't take ownership of a descriptor passed to it, so dropping it
+        // without closing leaves the caller's descriptor open
+        final FileInputStream fileStream = new FileInputStream(fileDescriptor);
+        boolean seekable;
+        try {
+            fileStream.getChannel().position(startOffset);
+            seekable = true;
+        } catch (IOException e) {
+            // A pipe or socket; read from wherever it is now
+            seekable = false;
+        }
+        return new DescriptorStream(fileStream, startOffset, length, seekable,
+                new AtomicBoolean());
+    }
+
+    private DescriptorStream(FileInputStream fileStream, long startOffset, long length,
+            boolean seekable, AtomicBoolean cancelled) {
+        super(limit(fileStream, length), BUFFER_SIZE);
+        mFileStream = fileStream;
+        mStartOffset = startOffset;
+        mLength = length;
+        mSeekable = seekable;
+        mCancelled = cancelled;
+        mark(MARK_LIMIT);
+    }
+
+    /**
+     * Makes every later read, of this stream or one returned by {@link #rewind()}, fail with an
+     * IOException, which ends a decode reading it. May be called from any thread.
+     */
+    void cancel() {
+        mCancelled.set(true);
+    }
+
+    boolean isCancelled() {
+        return mCancelled.get();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        checkCancelled();
+        return super.read(buffer, offset, count);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        checkCancelled();
+        return super.skip(count);
+    }
+
+    private void checkCancelled() throws IOException {
+        if (mCancelled.get()) {
+            throw new IOException("Read cancelled");
+        }
+    }
+
+    /**
+     * Returns a stream positioned back at the start of the image: this stream, reset to its
+     * mark, if possible, otherwise a new stream re-read from the start offset.
+     *
+     * @throws IOException if the mark was lost and the descriptor can't seek.
+     */
+    DescriptorStream rewind() throws IOException {
+        checkCancelled();
+        try {
+            reset();
+            mark(MARK_LIMIT);
+            return this;
+        } catch (IOException e) {
+            if (!mSeekable) {
+                throw e;
+            }
+            final FileChannel channel = mFileStream.getChannel();
+            channel.position(mStartOffset);
+            return new DescriptorStream(mFileStream, mStartOffset, mLength, true, mCancelled);
+        }
+    }
+
+    /**
+     * Does nothing; the descriptor belongs to the caller.
+     */
+    @Override
+    public void close() {}
+
+    private static InputStream limit(InputStream in, long length) {
+        return length >= 0 ? new LimitedInputStream(in, length) : in;
+    }
+
+    /**
+     * Stops reading after a fixed number of bytes, so an image stored inside a larger file
+     * doesn't run on into whatever follows it.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int read = in.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            final long skipped = in.skip(Math.min(count, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
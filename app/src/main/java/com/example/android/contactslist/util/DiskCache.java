@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.util.Log;
+
+import com.example.android.contactslist.BuildConfig;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded, least-recently-used cache of files in a single directory.
+ *
+ * Every change is appended to a journal before it is visible, and entries are written to a
+ * temporary file that is only renamed into place once it is complete and synced. If the process
+ * dies mid-write, the next {@link #open} deletes the partial file, and drops an entry whose
+ * DIRTY line has no matching CLEAN line, so a reader never sees a truncated entry. A journal
+ * line cut short by a crash ends the journal, which is then rewritten.
+ *
+ * Writing and syncing happen outside the cache's lock, so reads on other threads don't wait
+ * for the disk to flush; only the rename and its journal lines are done under it.
+ *
+ * Journal lines look like:
+ * <pre>
+ *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 4096
+ *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
+ *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
+ *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * </pre>
+ */
+public class DiskCache {
+    private static final String TAG = "DiskCache";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String MAGIC = "contactslist.DiskCache";
+    private static final String VERSION = "1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Compact the journal once it holds this many lines that no longer describe live entries
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final long mMaxSize;
+    private long mSize;
+    private int mRedundantOpCount;
+    private Writer mJournalWriter;
+
+    // Numbers temporary files, so writers of the same key don't share one
+    private final AtomicInteger mTmpFileCount = new AtomicInteger();
+
+    // Entry sizes in access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(0, 0.75f, true);
+
+    private DiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating it if it doesn't exist. This does disk I/O
+     * and must not be called on the UI thread.
+     *
+     * @param maxSize The maximum number of bytes the cache may use.
+     */
+    public static DiskCache open(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+
+        final DiskCache cache = new DiskCache(directory, maxSize);
+        if (cache.mJournalFile.exists()) {
+            try {
+                if (cache.readJournal()) {
+                    cache.mJournalWriter =
+                            new BufferedWriter(new FileWriter(cache.mJournalFile, true));
+                } else {
+                    // Drop the unreadable tail rather than append after it
+                    cache.rebuildJournal();
+                }
+                cache.deleteOrphans();
+                cache.trimToSize();
+                return cache;
+            } catch (IOException e) {
+                Log.w(TAG, "open - journal is corrupt, clearing cache: " + e.toString());
+                cache.mEntries.clear();
+                cache.mSize = 0;
+                deleteContents(directory);
+            }
+        }
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * Returns a stream over the entry for {@code key}, or null if there is none. The caller
+     * must close the stream.
+     */
+    public synchronized InputStream get(String key) {
+        // get() rather than containsKey(), as only get() moves the entry to the most recently
+        // used end
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+        try {
+            final InputStream in = new FileInputStream(getEntryFile(key));
+            appendJournal(READ + ' ' + key);
+            return in;
+        } catch (FileNotFoundException e) {
+            // The file went away behind our back, forget about it
+            mSize -= mEntries.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if an entry exists for {@code key}, without counting as an access.
+     */
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Stores {@code data} under {@code key}, replacing any previous entry, then evicts the least
+     * recently used entries until the cache fits its size budget. The data is written and synced
+     * without holding the cache's lock.
+     */
+    public void put(String key, byte[] data) throws IOException {
+        validateKey(key);
+        // '.' can't appear in a key, so this never names an entry
+        final File tmpFile = new File(mDirectory,
+                key + '.' + mTmpFileCount.incrementAndGet() + TMP_SUFFIX);
+
+        FileOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(tmpFile);
+            out.write(data);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            written = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+            if (!written) {
+                // Nothing was journaled yet, so any previous entry is still good
+                tmpFile.delete();
+            }
+        }
+        commit(key, tmpFile, data.length);
+    }
+
+    /**
+     * Renames a complete, synced temporary file into place as the entry for {@code key}.
+     */
+    private synchronized void commit(String key, File tmpFile, long size) throws IOException {
+        final File entryFile = getEntryFile(key);
+        appendJournal(DIRTY + ' ' + key);
+        if (!tmpFile.renameTo(entryFile)) {
+            // The DIRTY line has already invalidated any previous entry in the journal, so drop
+            // it here too rather than keep serving a file the next open() will delete
+            tmpFile.delete();
+            entryFile.delete();
+            final Long previous = mEntries.remove(key);
+            if (previous != null) {
+                mSize -= previous;
+            }
+            appendJournal(REMOVE + ' ' + key);
+            throw new IOException("Unable to rename " + tmpFile + " to " + entryFile);
+        }
+        final Long previous = mEntries.put(key, size);
+        if (previous != null) {
+            mSize -= previous;
+        }
+        mSize += size;
+        appendJournal(CLEAN + ' ' + key + ' ' + size);
+        trimToSize();
+    }
+
+    /**
+     * Removes the entry for {@code key}, if any.
+     */
+    public synchronized void remove(String key) {
+        final Long size = mEntries.remove(key);
+        if (size != null) {
+            getEntryFile(key).delete();
+            mSize -= size;
+            appendJournal(REMOVE + ' ' + key);
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently used by the cache.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Closes the journal. The cache must not be used afterwards.
+     */
+    public synchronized void close() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException e) {}
+            mJournalWriter = null;
+        }
+    }
+
+    /**
+     * Hashes an arbitrary string, such as a Uri, into a key that is safe to use as a file name.
+     */
+    public static String hashKey(String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            final byte[] bytes = digest.digest(key.getBytes());
+            final StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (int i = 0; i < bytes.length; i++) {
+                final String hex = Integer.toHexString(0xFF & bytes[i]);
+                if (hex.length() == 1) {
+                    sb.append('0');
+                }
+                sb.append(hex);
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    /**
+     * Replays the journal into mEntries. A malformed line, or a last line without its newline,
+     * is taken as the end of the journal, as a crash may have cut an append short.
+     *
+     * @return true if the whole journal was read, false if it ended early and must be rebuilt.
+     * @throws IOException if the header is wrong or the journal can't be read.
+     */
+    private boolean readJournal() throws IOException {
+        final boolean terminated = endsWithNewline(mJournalFile);
+        final BufferedReader reader = new BufferedReader(new FileReader(mJournalFile));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if ((next == null && !terminated) || !replayJournalLine(line)) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "readJournal - journal ends early at: " + line);
+                    }
+                    return false;
+                }
+                lineCount++;
+                line = next;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Applies one journal line to mEntries, returning false if it is malformed.
+     */
+    private boolean replayJournalLine(String line) {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return false;
+        }
+        final String key = parts[1];
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            final long size;
+            try {
+                size = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            final Long previous = mEntries.put(key, size);
+            mSize += size - (previous != null ? previous : 0);
+        } else if (DIRTY.equals(parts[0]) || REMOVE.equals(parts[0])) {
+            // A DIRTY entry is only valid once a later CLEAN line commits it
+            final Long previous = mEntries.remove(key);
+            if (previous != null) {
+                mSize -= previous;
+            }
+        } else if (READ.equals(parts[0])) {
+            mEntries.get(key);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Deletes files that are not live entries, such as temporary files left by a crash during
+     * a write.
+     */
+    private void deleteOrphans() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!JOURNAL_FILE.equals(name) && !mEntries.containsKey(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal holding only the live entries, replacing the current one atomically.
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+        }
+
+        final File tmpJournal = new File(mDirectory, JOURNAL_FILE_TMP);
+        final Writer writer = new BufferedWriter(new FileWriter(tmpJournal));
+        try {
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmpJournal.renameTo(mJournalFile)) {
+            throw new IOException("Unable to rename " + tmpJournal + " to " + mJournalFile);
+        }
+        mJournalWriter = new BufferedWriter(new FileWriter(mJournalFile, true));
+        mRedundantOpCount = 0;
+    }
+
+    private void appendJournal(String line) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+            mRedundantOpCount++;
+            if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && mRedundantOpCount >= mEntries.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "appendJournal - " + e.toString());
+            }
+        }
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            getEntryFile(eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            appendJournal(REMOVE + ' ' + eldest.getKey());
+        }
+    }
+
+    private static void validateKey(String key) {
+        if (key == null || key.length() == 0 || key.length() > 64
+                || !key.matches("[a-z0-9_-]+")) {
+            throw new IllegalArgumentException("keys must match [a-z0-9_-]{1,64}: " + key);
+        }
+    }
+
+    private static void deleteContents(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+
+/**
+ * Shows one image, a bitmap or another drawable, and can fade it in from transparent. An
+ * ImageView keeps one for as long as it lives and the image is swapped on every bind, so
+ * showing an image allocates nothing. Only the current image is referenced; the previous one is
+ * released as soon as it's replaced.
+ *
+ * A bitmap shown here holds a display reference from the {@link ImageCache}, see
+ * {@link ImageCache#acquireBitmap}, which is given back when the bitmap is replaced. Bitmaps that
+ * didn't come from the cache, such as placeholders, are unaffected. Likewise a thumbnail from
+ * the {@link ThumbnailAtlas} is released when replaced, so its cell can be reused.
+ */
+public class FadeInDrawable extends Drawable implements Drawable.Callback {
+    private final int mTargetDensity;
+    private final ImageCache mImageCache;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private Bitmap mBitmap;
+    private Drawable mDrawable;
+
+    // The last atlas drawable shown, kept after it's released to show the next atlas thumbnail
+    private ThumbnailAtlas.AtlasDrawable mAtlasDrawable;
+    private int mAlpha = 255;
+
+    private boolean mFading;
+    private long mFadeStartMillis;
+    private int mFadeDurationMillis;
+
+    /**
+     * @param imageCache The cache to release shown bitmaps to, or null.
+     */
+    public FadeInDrawable(Resources resources, ImageCache imageCache) {
+        mTargetDensity = resources.getDisplayMetrics().densityDpi;
+        mImageCache = imageCache;
+    }
+
+    /**
+     * Shows a bitmap, scaled to the bounds, replacing the current image. Takes over the caller's
+     * display reference on it, if any. Stops any fade.
+     */
+    public void setBitmap(Bitmap bitmap) {
+        releaseImage();
+        mBitmap = bitmap;
+        invalidateSelf();
+    }
+
+    /**
+     * Shows a drawable, replacing the current image. The drawable must not be shown anywhere
+     * else, as its alpha is changed while fading. Stops any fade.
+     */
+    public void setDrawable(Drawable drawable) {
+        if (drawable != null && drawable == mDrawable) {
+            // Already shown, such as a reused atlas drawable pointed at another thumbnail
+            mFading = false;
+            invalidateSelf();
+            return;
+        }
+        releaseImage();
+        mDrawable = drawable;
+        if (drawable != null) {
+            drawable.setCallback(this);
+            drawable.setBounds(getBounds());
+        }
+        invalidateSelf();
+    }
+
+    /**
+     * Returns an atlas drawable only this drawable has shown, to be reused for the next atlas
+     * thumbnail with {@link ThumbnailAtlas#acquire(long, long, String,
+     * ThumbnailAtlas.AtlasDrawable)}, or null.
+     */
+    public ThumbnailAtlas.AtlasDrawable getReusableAtlasDrawable() {
+        return mDrawable instanceof ThumbnailAtlas.AtlasDrawable
+                ? (ThumbnailAtlas.AtlasDrawable) mDrawable : mAtlasDrawable;
+    }
+
+    /**
+     * Fades the current image in from transparent.
+     */
+    public void startFade(int durationMillis) {
+        mFading = true;
+        mFadeStartMillis = SystemClock.uptimeMillis();
+        mFadeDurationMillis = durationMillis;
+        invalidateSelf();
+    }
+
+    private void releaseImage() {
+        if (mDrawable != null) {
+            mDrawable.setCallback(null);
+        }
+        if (mDrawable instanceof ThumbnailAtlas.AtlasDrawable) {
+            mAtlasDrawable = (ThumbnailAtlas.AtlasDrawable) mDrawable;
+            mAtlasDrawable.release();
+        }
+        if (mBitmap != null && mImageCache != null) {
+            mImageCache.releaseBitmap(mBitmap);
+        }
+        mDrawable = null;
+        mBitmap = null;
+        mFading = false;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        int alpha = mAlpha;
+        if (mFading) {
+            final long elapsed = SystemClock.uptimeMillis() - mFadeStartMillis;
+            if (elapsed >= mFadeDurationMillis) {
+                mFading = false;
+            } else {
+                alpha = (int) (alpha * elapsed / mFadeDurationMillis);
+            }
+        }
+
+        if (mBitmap != null) {
+            mPaint.setAlpha(alpha);
+            canvas.drawBitmap(mBitmap, null, getBounds(), mPaint);
+        } else if (mDrawable != null) {
+            mDrawable.setAlpha(alpha);
+            mDrawable.draw(canvas);
+        }
+
+        if (mFading) {
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        if (mDrawable != null) {
+            mDrawable.setBounds(bounds);
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        if (mBitmap != null) {
+            return mBitmap.getScaledWidth(mTargetDensity);
+        }
+        return mDrawable != null ? mDrawable.getIntrinsicWidth() : -1;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        if (mBitmap != null) {
+            return mBitmap.getScaledHeight(mTargetDensity);
+        }
+        return mDrawable != null ? mDrawable.getIntrinsicHeight() : -1;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mAlpha = alpha;
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        if (mDrawable != null) {
+            mDrawable.setColorFilter(colorFilter);
+        }
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    @Override
+    public void invalidateDrawable(Drawable who) {
+        invalidateSelf();
+    }
+
+    @Override
+    public void scheduleDrawable(Drawable who, Runnable what, long when) {
+        scheduleSelf(what, when);
+    }
+
+    @Override
+    public void unscheduleDrawable(Drawable who, Runnable what) {
+        unscheduleSelf(what);
+    }
+}
@@ -17,92 +17,934 @@
 package com.example.android.contactslist.util;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.os.Bundle;
-import android.support.v4.app.Fragment;
-import android.support.v4.app.FragmentManager;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.SystemClock;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import com.example.android.contactslist.BuildConfig;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.WeakHashMap;
+
 /**
- * This class holds our bitmap caches (memory and disk).
+ * This class holds our bitmap caches (memory and disk). There is one instance per process,
+ * shared by every {@link ImageLoader}, so it survives activity recreation and a photo decoded
+ * for one screen is still cached when another screen shows it.
+ *
+ * The memory budget is split between two pools, so a few large display-size photos can't evict
+ * the hundreds of thumbnails the contact list needs, and vice versa. Entries are keyed by
+ * {@link ImageKey}. Contact thumbnails are held by contact id in a primitive keyed map, so the
+ * list can look them up while binding rows without allocating, see {@link #acquireThumbnail}.
+ * Only thumbnails are written to the disk tier.
+ *
+ * Bitmaps evicted from the memory tiers go to the {@link BitmapPool} to be decoded into again,
+ * but only once no view shows them: bitmaps handed out for display carry a display reference,
+ * see {@link #acquireBitmap} and {@link #releaseBitmap}, and one evicted while referenced is
+ * only pooled when its last reference is released.
+ *
+ * For the contact list, thumbnails of one size can instead be packed into a
+ * {@link ThumbnailAtlas}, see {@link #enableThumbnailAtlas}.
+ *
+ * Under memory pressure the memory tiers and the bitmap pool shrink, by how severe the pressure
+ * is, see {@link #trimMemory}. Once the pressure has passed they grow back a step at a time.
  */
 public class ImageCache {
     private static final String TAG = "ImageCache";
-    private LruCache<String, Bitmap> mMemoryCache;
+
+    // The total memory budget, as a fraction of the app's maximum heap
+    private static final float MEM_CACHE_SIZE_PERCENT = 0.15f;
+
+    // The share of the memory budget that goes to thumbnails; the rest is for display photos
+    private static final float THUMBNAIL_POOL_SHARE = 0.6f;
+
+    // Images requested at up to this many pixels a side are thumbnails
+    private static final int MAX_THUMBNAIL_SIZE = 256;
+
+    // The share of the thumbnail budget that goes to the atlas, once enabled
+    private static final float ATLAS_SHARE = 0.75f;
+
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final long DISK_CACHE_SIZE = 5 * 1024 * 1024; // 5MB
+
+    // Raw pixels of list-sized thumbnails, read without decoding, see ThumbnailPack
+    private static final String THUMBNAIL_PACK_FILE = "thumbnails.pack";
+    private static final int THUMBNAIL_PACK_SIZE = 8 * 1024 * 1024; // 8MB
+
+    // Thumbnails are stored as JPEG unless they have transparency; a small JPEG is both compact
+    // on disk and cheap to decode
+    private static final int DISK_CACHE_JPEG_QUALITY = 85;
+
+    // The bitmap pool's budget, as a fraction of the memory cache size
+    private static final float BITMAP_POOL_SIZE_RATIO = 0.25f;
+
+    /**
+     * The level to pass to {@link #trimMemory} for {@code onLowMemory()}, which asks for as much
+     * memory back as possible.
+     */
+    public static final int TRIM_LEVEL_LOW_MEMORY = ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+
+    // After memory has been trimmed, how often and by how much the memory budget grows back, as
+    // a fraction of the full budget
+    private static final long GROWTH_INTERVAL_MILLIS = 30 * 1000;
+    private static final float GROWTH_STEP = 0.25f;
+
+    // How long, and for how many keys, an image is remembered as missing
+    private static final long MISSING_TTL_MILLIS = 10 * 60 * 1000; // 10 minutes
+    private static final int MAX_MISSING_ENTRIES = 2000;
+
+    // Names of the metrics reported by getMetrics()
+    public static final String METRIC_MEMORY_HITS = "memory.hits";
+    public static final String METRIC_MEMORY_MISSES = "memory.misses";
+    public static final String METRIC_MEMORY_EVICTIONS = "memory.evictions";
+    public static final String METRIC_MEMORY_BYTES = "memory.bytes";
+    public static final String METRIC_MEMORY_MAX_BYTES = "memory.max_bytes";
+    public static final String METRIC_MEMORY_LIMIT_BYTES = "memory.limit_bytes";
+    public static final String METRIC_ATLAS_BYTES = "atlas.bytes";
+    public static final String METRIC_ATLAS_COUNT = "atlas.count";
+    public static final String METRIC_ATLAS_UPLOADS = "atlas.page_uploads";
+    public static final String METRIC_ATLAS_UPLOAD_BYTES = "atlas.page_upload_bytes";
+    public static final String METRIC_TRIMS = "memory.trims";
+    public static final String METRIC_TRIMMED_BYTES = "memory.trimmed_bytes";
+    public static final String METRIC_DISK_HITS = "disk.hits";
+    public static final String METRIC_DISK_MISSES = "disk.misses";
+    public static final String METRIC_DISK_READ_TIME = "disk.read_us";
+    public static final String METRIC_DISK_BYTES = "disk.bytes";
+    public static final String METRIC_PACK_HITS = "pack.hits";
+    public static final String METRIC_PACK_MISSES = "pack.misses";
+    public static final String METRIC_PACK_READ_TIME = "pack.read_us";
+    public static final String METRIC_PACK_COUNT = "pack.count";
+    public static final String METRIC_MISSING_HITS = "missing.hits";
+    public static final String METRIC_POOL_HITS = "pool.hits";
+    public static final String METRIC_POOL_MISSES = "pool.misses";
+    public static final String METRIC_POOL_BYTES = "pool.bytes";
+
+    private static ImageCache sInstance;
+
+    private final Metrics mMetrics = new Metrics(TAG);
+    private final Metrics.Counter mMemoryHits = mMetrics.counter(METRIC_MEMORY_HITS);
+    private final Metrics.Counter mMemoryMisses = mMetrics.counter(METRIC_MEMORY_MISSES);
+    private final Metrics.Counter mMemoryEvictions =
+            mMetrics.counter(METRIC_MEMORY_EVICTIONS);
+    private final Metrics.Counter mDiskHits = mMetrics.counter(METRIC_DISK_HITS);
+    private final Metrics.Counter mDiskMisses = mMetrics.counter(METRIC_DISK_MISSES);
+    private final Metrics.Histogram mDiskReadTime =
+            mMetrics.histogram(METRIC_DISK_READ_TIME, "us");
+    private final Metrics.Counter mPackHits = mMetrics.counter(METRIC_PACK_HITS);
+    private final Metrics.Counter mPackMisses = mMetrics.counter(METRIC_PACK_MISSES);
+    private final Metrics.Histogram mPackReadTime =
+            mMetrics.histogram(METRIC_PACK_READ_TIME, "us");
+    private final Metrics.Counter mMissingHits = mMetrics.counter(METRIC_MISSING_HITS);
+    private final Metrics.Counter mTrims = mMetrics.counter(METRIC_TRIMS);
+    private final Metrics.Counter mTrimmedBytes = mMetrics.counter(METRIC_TRIMMED_BYTES);
+
+    // Contact thumbnails by contact id; everything else by key
+    private ThumbnailCache mThumbnailCache;
+    private BitmapLruCache mDisplayCache;
+    private BitmapPool mBitmapPool;
+
+    // Contact thumbnails of the list's size, if enabled
+    private volatile ThumbnailAtlas mThumbnailAtlas;
+
+    // The full budgets, in kilobytes for the memory tiers and bytes for the pool, and the
+    // fraction of them currently allowed. The display tier's limit is enforced on each put.
+    private int mThumbnailCacheSize;
+    private int mDisplayCacheSize;
+    private int mBitmapPoolSize;
+    private int mAtlasSize;
+    private final Object mResizeLock = new Object();
+    private volatile float mSizeFraction = 1f;
+    private volatile int mDisplayCacheLimit;
+    private volatile long mLastResizeMillis;
+
+    // Display references on bitmaps handed out by acquireBitmap() and acquireThumbnail(). A view
+    // that goes away without releasing its bitmap only keeps it out of the pool, hence the weak
+    // keys. Bitmaps don't override equals(), so keys compare by identity.
+    private final WeakHashMap<Bitmap, DisplayRefs> mDisplayRefs =
+            new WeakHashMap<Bitmap, DisplayRefs>();
+
+    // Contacts known to have no photo, by contact id, see markMissing()
+    private final LongLruCache<MissingEntry> mMissing =
+            new LongLruCache<MissingEntry>(MAX_MISSING_ENTRIES);
+    private volatile int mMissingGeneration;
+
+    private final File mDiskCacheDir;
+    private final long mDiskCacheSize;
+    private final Object mDiskCacheLock = new Object();
+    private DiskCache mDiskCache;
+    private boolean mDiskCacheOpenFailed;
+
+    // Opened along with the disk cache once enabled, for thumbnails of one size only
+    private final File mThumbnailPackFile;
+    private volatile int mThumbnailPackSize;
+    private ThumbnailPack mThumbnailPack;
+    private boolean mThumbnailPackOpenFailed;
 
     /**
      * Creating a new ImageCache object using the specified parameters.
      *
-     * @param memCacheSizePercent The cache size as a percent of available app memory.
+     * @param memCacheSizePercent The total memory budget as a percent of available app memory.
+     * @param diskCacheDir The directory for the disk cache, or null for a memory-only cache.
+     * @param diskCacheSize The disk cache size budget in bytes.
+     * @param thumbnailPackFile The file for the thumbnail pack, or null for none.
      */
-    private ImageCache(float memCacheSizePercent) {
+    private ImageCache(float memCacheSizePercent, File diskCacheDir, long diskCacheSize,
+            File thumbnailPackFile) {
+        mDiskCacheDir = diskCacheDir;
+        mDiskCacheSize = diskCacheSize;
+        mThumbnailPackFile = thumbnailPackFile;
         init(memCacheSizePercent);
     }
 
+    /**
+     * Returns the process-wide ImageCache, creating it on first use. The disk cache is opened
+     * lazily on the first background access.
+     */
+    public static synchronized ImageCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new ImageCache(MEM_CACHE_SIZE_PERCENT,
+                    getDiskCacheDir(appContext, DISK_CACHE_DIR), DISK_CACHE_SIZE,
+                    new File(appContext.getCacheDir(), THUMBNAIL_PACK_FILE));
+            if (Utils.hasICS()) {
+                registerMemoryCallbacks(appContext, sInstance);
+            }
+        }
+        return sInstance;
+    }
 
-    public static ImageCache getInstance(
-            FragmentManager fragmentManager, float memCacheSizePercent) {
-
-        // Search for, or create an instance of the non-UI RetainFragment
-        final RetainFragment mRetainFragment = findOrCreateRetainFragment(fragmentManager);
+    /**
+     * Trims the cache whenever the system asks the app to. Before ICS there are no component
+     * callbacks, so activities forward {@code onLowMemory()} to {@link #trimMemory} instead.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static void registerMemoryCallbacks(Context appContext, final ImageCache cache) {
+        appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                cache.trimMemory(level);
+            }
 
-        // See if we already have an ImageCache stored in RetainFragment
-        ImageCache imageCache = (ImageCache) mRetainFragment.getObject();
+            @Override
+            public void onLowMemory() {
+                cache.trimMemory(TRIM_LEVEL_LOW_MEMORY);
+            }
 
-        // No existing ImageCache, create one and store it in RetainFragment
-        if (imageCache == null) {
-            imageCache = new ImageCache(memCacheSizePercent);
-            mRetainFragment.setObject(imageCache);
-        }
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        });
+    }
 
-        return imageCache;
+    /**
+     * Returns the key an image is cached under: its source plus the size it was decoded for, so
+     * the same photo decoded as a list thumbnail and as a full-screen photo are cached apart.
+     * Contact photos should use {@link ImageKey#forContact} instead.
+     */
+    public static ImageKey getCacheKey(Object data, int size) {
+        return ImageKey.forSource(data, size);
     }
 
 
     private void init(float memCacheSizePercent) {
-        int memCacheSize = calculateMemCacheSize(memCacheSizePercent);
+        final int memCacheSize = calculateMemCacheSize(memCacheSizePercent);
+        final int thumbnailCacheSize = Math.round(memCacheSize * THUMBNAIL_POOL_SHARE);
 
         // Set up memory cache
         if (BuildConfig.DEBUG) {
-            Log.d(TAG, "Memory cache created (size = " + memCacheSize + ")");
+            Log.d(TAG, "Memory cache created (size = " + memCacheSize + ", thumbnails = "
+                    + thumbnailCacheSize + ")");
         }
-        mMemoryCache = new LruCache<String, Bitmap>(memCacheSize) {
+        mThumbnailCacheSize = thumbnailCacheSize;
+        mDisplayCacheSize = memCacheSize - thumbnailCacheSize;
+        mBitmapPoolSize = Math.round(memCacheSize * 1024 * BITMAP_POOL_SIZE_RATIO);
+        mDisplayCacheLimit = mDisplayCacheSize;
+        mBitmapPool = new BitmapPool(mBitmapPoolSize);
+        mThumbnailCache = new ThumbnailCache(mThumbnailCacheSize);
+        mDisplayCache = new BitmapLruCache(mDisplayCacheSize);
 
+        mMetrics.gauge(METRIC_MEMORY_BYTES, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return (mThumbnailCache.size() + mDisplayCache.size()) * 1024L
+                        + getAtlasSize();
+            }
+        });
+        mMetrics.gauge(METRIC_MEMORY_MAX_BYTES, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return (mThumbnailCache.maxSize() + mDisplayCache.maxSize()) * 1024L
+                        + mAtlasSize;
+            }
+        });
+        mMetrics.gauge(METRIC_MEMORY_LIMIT_BYTES, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                final ThumbnailAtlas atlas = mThumbnailAtlas;
+                return (mThumbnailCache.maxSize() + (long) mDisplayCacheLimit) * 1024L
+                        + (atlas != null ? atlas.maxSize() : 0);
+            }
+        });
+        mMetrics.gauge(METRIC_ATLAS_BYTES, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getAtlasSize();
+            }
+        });
+        mMetrics.gauge(METRIC_ATLAS_COUNT, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                final ThumbnailAtlas atlas = mThumbnailAtlas;
+                return atlas != null ? atlas.count() : 0;
+            }
+        });
+        mMetrics.gauge(METRIC_ATLAS_UPLOADS, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                final ThumbnailAtlas atlas = mThumbnailAtlas;
+                return atlas != null ? atlas.getPageUploadCount() : 0;
+            }
+        });
+        mMetrics.gauge(METRIC_ATLAS_UPLOAD_BYTES, new Metrics.Gauge() {
             @Override
-            protected int sizeOf(String key, Bitmap bitmap) {
-                final int bitmapSize = getBitmapSize(bitmap) / 1024;
-                return bitmapSize == 0 ? 1 : bitmapSize;
+            public long getValue() {
+                final ThumbnailAtlas atlas = mThumbnailAtlas;
+                return atlas != null ? atlas.getPageUploadBytes() : 0;
+            }
+        });
+        mMetrics.gauge(METRIC_DISK_BYTES, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                synchronized (mDiskCacheLock) {
+                    return mDiskCache != null ? mDiskCache.size() : 0;
+                }
+            }
+        });
+        mMetrics.gauge(METRIC_PACK_COUNT, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                synchronized (mDiskCacheLock) {
+                    return mThumbnailPack != null ? mThumbnailPack.count() : 0;
+                }
+            }
+        });
+        mMetrics.gauge(METRIC_POOL_HITS, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mBitmapPool.hitCount();
+            }
+        });
+        mMetrics.gauge(METRIC_POOL_MISSES, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mBitmapPool.missCount();
+            }
+        });
+        mMetrics.gauge(METRIC_POOL_BYTES, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mBitmapPool.size();
+            }
+        });
+    }
+
+    /**
+     * Returns this cache's hit rates, sizes and disk read times. See the {@code METRIC_}
+     * constants for the names.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        mMetrics.dump(prefix, writer);
+    }
+
+    /**
+     * Returns the pool of bitmaps evicted from the memory cache, for use with
+     * {@link ImageLoader#decodeSampledBitmapFromDescriptor(java.io.FileDescriptor, int, int,
+     * BitmapPool)}.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Packs contact thumbnails of exactly {@code size} pixels into a {@link ThumbnailAtlas}
+     * rather than holding a bitmap for each, taking most of the thumbnail budget for it. They
+     * are then available as drawables, see {@link #getThumbnailDrawable}, and only go to the
+     * thumbnail tier when the atlas has no room. Only one size can use the atlas; later calls
+     * for another size are ignored, as is a budget too small for a row of cells.
+     */
+    public void enableThumbnailAtlas(int size) {
+        synchronized (mResizeLock) {
+            if (mThumbnailAtlas != null) {
+                return;
+            }
+            final int atlasSize = Math.round(mThumbnailCacheSize * 1024 * ATLAS_SHARE);
+            final ThumbnailAtlas atlas = new ThumbnailAtlas(size, atlasSize);
+            if (atlas.maxSize() == 0) {
+                return;
             }
-        };
+            // Only what the atlas can use is taken from the thumbnail tier
+            mAtlasSize = atlas.maxSize();
+            mThumbnailCacheSize -= mAtlasSize / 1024;
+            mThumbnailAtlas = atlas;
+            applySizeFraction(mSizeFraction);
+        }
+    }
+
+    /**
+     * Keeps contact thumbnails of exactly {@code size} pixels in the thumbnail pack as well as
+     * the disk cache, so they are read back without decoding, see {@link ThumbnailPack}. Only
+     * one size can use the pack; later calls are ignored.
+     */
+    public void enableThumbnailPack(int size) {
+        if (mThumbnailPackSize == 0) {
+            mThumbnailPackSize = size;
+        }
+    }
+
+    /**
+     * Returns true if contact thumbnails of this size are kept in the atlas.
+     */
+    public boolean usesThumbnailAtlas(int size) {
+        final ThumbnailAtlas atlas = mThumbnailAtlas;
+        return atlas != null && atlas.getCellSize() == size;
+    }
+
+    private int getAtlasSize() {
+        final ThumbnailAtlas atlas = mThumbnailAtlas;
+        return atlas != null ? atlas.size() : 0;
     }
 
 
-    public void addBitmapToCache(String data, Bitmap bitmap) {
-        if (data == null || bitmap == null) {
+    public void addBitmapToCache(ImageKey key, Bitmap bitmap) {
+        if (key == null || bitmap == null) {
             return;
         }
+        maybeGrow();
+
+        // Add to memory cache. The tier follows the size the image was requested at, not what
+        // the decode happened to produce, so one key always lands in the same tier. Atlas-sized
+        // thumbnails only go to the thumbnail tier when the atlas has no room for them.
+        final boolean isThumbnail = isThumbnailKey(key);
+        if (!copyToAtlas(key, bitmap)) {
+            if (isThumbnail && key.isContact()) {
+                if (getThumbnailQuietly(key.getContactId(), key.getPhotoId(), key.getSize(),
+                        key.getVariant()) == null) {
+                    mThumbnailCache.put(key.getContactId(), new Thumbnail(key, bitmap));
+                }
+            } else if (mDisplayCache.get(key) == null) {
+                mDisplayCache.put(key, bitmap);
+                mDisplayCache.trimToSize(mDisplayCacheLimit);
+            }
+        }
 
-        // Add to memory cache
-        if (mMemoryCache != null && mMemoryCache.get(data) == null) {
-            mMemoryCache.put(data, bitmap);
+        if (isThumbnail) {
+            addToDiskCache(key, bitmap);
         }
     }
 
+    /**
+     * Returns true if {@code key} asks for a thumbnail, which goes to the thumbnail tier and to
+     * disk, rather than a display-size image.
+     */
+    private static boolean isThumbnailKey(ImageKey key) {
+        return key.getSize() <= MAX_THUMBNAIL_SIZE;
+    }
 
-    public Bitmap getBitmapFromMemCache(String data) {
-        if (mMemoryCache != null) {
-            final Bitmap memBitmap = mMemoryCache.get(data);
-            if (memBitmap != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "Memory cache hit");
+    private boolean copyToAtlas(ImageKey key, Bitmap bitmap) {
+        if (!key.isContact() || !usesThumbnailAtlas(key.getSize())) {
+            return false;
+        }
+        final ThumbnailAtlas.AtlasDrawable drawable = mThumbnailAtlas.put(
+                key.getContactId(), key.getPhotoId(), key.getVariant(), bitmap);
+        if (drawable == null) {
+            return false;
+        }
+        drawable.release();
+        return true;
+    }
+
+    /**
+     * Copies a contact thumbnail into the atlas, and the disk tier, if the atlas takes
+     * thumbnails of its size and has room for it. The bitmap isn't kept, so the caller may
+     * reuse it.
+     *
+     * @return A drawable showing the thumbnail, to be released with
+     *         {@link ThumbnailAtlas.AtlasDrawable#release} once it isn't shown, or null if it
+     *         wasn't added to the atlas, in which case it belongs in the bitmap tiers.
+     */
+    public ThumbnailAtlas.AtlasDrawable addToThumbnailAtlas(ImageKey key, Bitmap bitmap) {
+        if (key == null || bitmap == null || !key.isContact()
+                || !usesThumbnailAtlas(key.getSize())) {
+            return null;
+        }
+        maybeGrow();
+        final ThumbnailAtlas.AtlasDrawable drawable = mThumbnailAtlas.put(
+                key.getContactId(), key.getPhotoId(), key.getVariant(), bitmap);
+        if (drawable != null) {
+            addToDiskCache(key, bitmap);
+        }
+        return drawable;
+    }
+
+    /**
+     * Writes a thumbnail to the disk tier, unless it's already there. Atlas-sized thumbnails
+     * also go into the thumbnail pack, which fills up this way as contacts are shown.
+     */
+    private void addToDiskCache(ImageKey key, Bitmap bitmap) {
+        final ThumbnailPack pack = getThumbnailPack(key);
+        if (pack != null) {
+            pack.put(key.getContactId(), key.getPhotoId(), key.getVariant(), bitmap);
+        }
+
+        final DiskCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            final String diskKey = DiskCache.hashKey(key.toString());
+            if (!diskCache.contains(diskKey)) {
+                final CompressFormat format =
+                        bitmap.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG;
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (bitmap.compress(format, DISK_CACHE_JPEG_QUALITY, out)) {
+                    try {
+                        diskCache.put(diskKey, out.toByteArray());
+                    } catch (IOException e) {
+                        Log.e(TAG, "addToDiskCache - " + e);
+                    }
                 }
-                return memBitmap;
             }
         }
-        return null;
+    }
+
+    /**
+     * Gets a bitmap from the disk tier: the thumbnail pack, then the disk cache. This does disk
+     * I/O and must not be called on the UI thread.
+     *
+     * @return The bitmap, or null if it isn't on disk.
+     */
+    public Bitmap getBitmapFromDiskCache(ImageKey key) {
+        final ThumbnailPack pack = getThumbnailPack(key);
+        if (pack != null) {
+            final long start = System.nanoTime();
+            final Bitmap bitmap = pack.get(
+                    key.getContactId(), key.getPhotoId(), key.getVariant(), mBitmapPool);
+            if (bitmap != null) {
+                mPackHits.increment();
+                mPackReadTime.record((System.nanoTime() - start) / 1000);
+                return bitmap;
+            }
+            mPackMisses.increment();
+        }
+
+        final DiskCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+
+        final long start = System.nanoTime();
+        final String diskKey = DiskCache.hashKey(key.toString());
+        final InputStream in = diskCache.get(diskKey);
+        if (in == null) {
+            mDiskMisses.increment();
+            return null;
+        }
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeStream(new BufferedInputStream(in));
+            if (bitmap != null) {
+                mDiskHits.increment();
+                mDiskReadTime.record((System.nanoTime() - start) / 1000);
+            } else {
+                // The file is corrupt; drop it so it's decoded and written again
+                mDiskMisses.increment();
+                diskCache.remove(diskKey);
+            }
+            return bitmap;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Returns the disk cache, opening it first if this is the first access. Returns null if the
+     * cache is memory-only or the disk cache couldn't be opened.
+     */
+    private DiskCache getDiskCache() {
+        if (mDiskCacheDir == null) {
+            return null;
+        }
+        synchronized (mDiskCacheLock) {
+            if (mDiskCache == null && !mDiskCacheOpenFailed) {
+                try {
+                    mDiskCache = DiskCache.open(mDiskCacheDir, mDiskCacheSize);
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache opened (size = " + mDiskCache.size() + ")");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "getDiskCache - " + e);
+                    mDiskCacheOpenFailed = true;
+                }
+            }
+            return mDiskCache;
+        }
+    }
+
+    /**
+     * Returns the thumbnail pack if {@code key} is a thumbnail it would hold, opening it first
+     * if this is the first access. Returns null otherwise, or if it couldn't be opened.
+     */
+    private ThumbnailPack getThumbnailPack(ImageKey key) {
+        if (mThumbnailPackFile == null || !key.isContact()
+                || key.getSize() != mThumbnailPackSize) {
+            return null;
+        }
+        synchronized (mDiskCacheLock) {
+            if (mThumbnailPack == null && !mThumbnailPackOpenFailed) {
+                try {
+                    mThumbnailPack = ThumbnailPack.open(
+                            mThumbnailPackFile, key.getSize(), THUMBNAIL_PACK_SIZE);
+                } catch (IOException e) {
+                    Log.e(TAG, "getThumbnailPack - " + e);
+                }
+                mThumbnailPackOpenFailed = mThumbnailPack == null;
+            }
+            return mThumbnailPack;
+        }
+    }
+
+
+    /**
+     * Returns the bitmap for {@code key} from a memory tier for display, or null, taking a
+     * display reference on it so it isn't handed to the bitmap pool while shown. Give the
+     * reference back with {@link #releaseBitmap} once no view shows the bitmap any more.
+     */
+    public Bitmap acquireBitmap(ImageKey key) {
+        return countLookup(acquireBitmapQuietly(key));
+    }
+
+    /**
+     * Like {@link #acquireBitmap}, but not counted as a hit or miss, for lookups that aren't
+     * the image a view asked for, such as a preview shown while it loads.
+     */
+    public Bitmap acquireBitmapQuietly(ImageKey key) {
+        Bitmap bitmap = null;
+        if (key.isContact()) {
+            bitmap = acquireThumbnailQuietly(
+                    key.getContactId(), key.getPhotoId(), key.getSize(), key.getVariant());
+        }
+        if (bitmap == null) {
+            // Looked up and referenced under the tier's lock, so an eviction on another thread
+            // either happens first and the lookup misses, or sees the reference
+            synchronized (mDisplayCache) {
+                bitmap = mDisplayCache.get(key);
+                if (bitmap != null) {
+                    retainBitmap(bitmap);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a contact's thumbnail from the memory cache for display, or null, like
+     * {@link #acquireBitmap}. The lookup is by primitive values and doesn't allocate, so it's
+     * cheap enough for every row bound while scrolling.
+     */
+    public Bitmap acquireThumbnail(long contactId, long photoId, int size, String variant) {
+        return countLookup(acquireThumbnailQuietly(contactId, photoId, size, variant));
+    }
+
+    private Bitmap acquireThumbnailQuietly(long contactId, long photoId, int size,
+            String variant) {
+        synchronized (mThumbnailCache) {
+            final Bitmap bitmap = getThumbnailQuietly(contactId, photoId, size, variant);
+            if (bitmap != null) {
+                retainBitmap(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Takes another display reference on a bitmap the caller already holds one on, or on a
+     * bitmap that isn't in the cache yet, such as one about to be added, for each further view
+     * that shows it.
+     */
+    public void retainBitmap(Bitmap bitmap) {
+        synchronized (mDisplayRefs) {
+            DisplayRefs refs = mDisplayRefs.get(bitmap);
+            if (refs == null) {
+                refs = new DisplayRefs();
+                mDisplayRefs.put(bitmap, refs);
+            }
+            refs.count++;
+        }
+    }
+
+    /**
+     * Gives back a display reference. Once a bitmap evicted from the memory tiers has none left,
+     * it goes to the bitmap pool. Bitmaps that never had one, such as placeholders, are ignored.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        synchronized (mDisplayRefs) {
+            final DisplayRefs refs = mDisplayRefs.get(bitmap);
+            if (refs == null || --refs.count > 0) {
+                return;
+            }
+            mDisplayRefs.remove(bitmap);
+            if (!refs.evicted) {
+                return;
+            }
+        }
+        mBitmapPool.put(bitmap);
+    }
+
+    /**
+     * Hands a bitmap evicted from a memory tier to the pool, or, if a view still shows it, marks
+     * it to be pooled once the last view lets it go.
+     */
+    private void recycleEvicted(Bitmap bitmap) {
+        synchronized (mDisplayRefs) {
+            final DisplayRefs refs = mDisplayRefs.get(bitmap);
+            if (refs != null) {
+                refs.evicted = true;
+                return;
+            }
+        }
+        mBitmapPool.put(bitmap);
+    }
+
+    /**
+     * Returns the bitmap for {@code key} from a memory tier without taking a display reference,
+     * so it must not be shown. Not counted as a hit or miss.
+     */
+    public Bitmap getBitmapFromMemCache(ImageKey key) {
+        Bitmap memBitmap = null;
+        if (key.isContact()) {
+            memBitmap = getThumbnailQuietly(
+                    key.getContactId(), key.getPhotoId(), key.getSize(), key.getVariant());
+        }
+        if (memBitmap == null) {
+            memBitmap = mDisplayCache.get(key);
+        }
+        return memBitmap;
+    }
+
+    /**
+     * Returns true if the image for {@code key} is in the atlas or a memory tier, without
+     * counting a hit or miss, for checking whether a load is needed at all.
+     */
+    public boolean isInMemory(ImageKey key) {
+        if (key.isContact() && usesThumbnailAtlas(key.getSize()) && mThumbnailAtlas.get(
+                key.getContactId(), key.getPhotoId(), key.getVariant()) != null) {
+            return true;
+        }
+        return getBitmapFromMemCache(key) != null;
+    }
+
+    /**
+     * Returns a drawable showing a contact's thumbnail from the atlas, or null. Release it with
+     * {@link ThumbnailAtlas.AtlasDrawable#release} once it isn't shown. Only a hit is counted:
+     * on a miss the thumbnail may still be in the thumbnail tier, and {@link #acquireThumbnail}
+     * counts that lookup.
+     *
+     * @param reuse A drawable from the atlas that only the caller shows, such as the one a view
+     *              showed for its previous row, to point at the thumbnail instead of allocating
+     *              one, see {@link FadeInDrawable#getReusableAtlasDrawable}, or null.
+     */
+    public ThumbnailAtlas.AtlasDrawable getThumbnailDrawable(long contactId, long photoId,
+            int size, String variant, ThumbnailAtlas.AtlasDrawable reuse) {
+        final ThumbnailAtlas atlas = mThumbnailAtlas;
+        final ThumbnailAtlas.AtlasDrawable drawable = atlas != null && atlas.getCellSize() == size
+                ? atlas.acquire(contactId, photoId, variant, reuse) : null;
+        if (drawable != null) {
+            mMemoryHits.increment();
+        }
+        return drawable;
+    }
+
+    /**
+     * Like {@link #getThumbnailDrawable}, but not counted as a hit.
+     */
+    public ThumbnailAtlas.AtlasDrawable getThumbnailDrawableQuietly(long contactId,
+            long photoId, int size, String variant) {
+        final ThumbnailAtlas atlas = mThumbnailAtlas;
+        return atlas != null && atlas.getCellSize() == size
+                ? atlas.acquire(contactId, photoId, variant) : null;
+    }
+
+    private Bitmap getThumbnailQuietly(long contactId, long photoId, int size,
+            String variant) {
+        final Thumbnail thumbnail = mThumbnailCache.get(contactId);
+        return thumbnail != null && thumbnail.photoId == photoId && thumbnail.size == size
+                && ImageKey.sameVariant(thumbnail.variant, variant) ? thumbnail.bitmap : null;
+    }
+
+    private Bitmap countLookup(Bitmap bitmap) {
+        if (bitmap != null) {
+            mMemoryHits.increment();
+        } else {
+            mMemoryMisses.increment();
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * Remembers that the contact photo for {@code key} doesn't exist, so binds can skip straight
+     * to the placeholder instead of asking for it again. The entry expires after a while, and
+     * all entries are dropped by {@link #invalidateMissing()}. Only contact photos are tracked.
+     */
+    public void markMissing(ImageKey key) {
+        if (key != null && key.isContact()) {
+            mMissing.put(key.getContactId(), new MissingEntry(key.getPhotoId(),
+                    mMissingGeneration, SystemClock.uptimeMillis() + MISSING_TTL_MILLIS));
+        }
+    }
+
+    /**
+     * Returns true if the image for {@code key} was recently found not to exist.
+     */
+    public boolean isKnownMissing(ImageKey key) {
+        return key.isContact() && isKnownMissing(key.getContactId(), key.getPhotoId());
+    }
+
+    /**
+     * Returns true if the contact photo was recently found not to exist. Doesn't allocate.
+     */
+    public boolean isKnownMissing(long contactId, long photoId) {
+        final MissingEntry entry = mMissing.get(contactId);
+        if (entry == null || entry.photoId != photoId) {
+            return false;
+        }
+        if (entry.generation != mMissingGeneration
+                || SystemClock.uptimeMillis() >= entry.expiresAt) {
+            mMissing.remove(contactId);
+            return false;
+        }
+        mMissingHits.increment();
+        return true;
+    }
+
+    /**
+     * Forgets every image marked missing, e.g. because the underlying data changed and photos
+     * may have been added. Entries are invalidated by generation rather than cleared, so this is
+     * cheap enough to call on every change notification.
+     */
+    public void invalidateMissing() {
+        mMissingGeneration++;
+    }
+
+
+    /**
+     * Shrinks the memory tiers and the bitmap pool according to how much memory the system
+     * wants back, one of the {@link ComponentCallbacks2} {@code TRIM_MEMORY_} levels. Once the
+     * app is hidden the pool is emptied; under heavier pressure the tiers shrink too, down to
+     * nothing at {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}. The budget grows back
+     * gradually as images are added after the pressure has passed.
+     *
+     * @return The number of bytes of bitmaps released.
+     */
+    public long trimMemory(int level) {
+        final long before = getMemoryUsage();
+        synchronized (mResizeLock) {
+            final float fraction = getTrimFraction(level);
+            if (fraction < mSizeFraction) {
+                applySizeFraction(fraction);
+            }
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                // Pooled bitmaps only speed up future decodes, and there won't be any for now
+                mBitmapPool.clear();
+            }
+            mLastResizeMillis = SystemClock.uptimeMillis();
+        }
+        final long released = Math.max(0, before - getMemoryUsage());
+        mTrims.increment();
+        mTrimmedBytes.add(released);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "trimMemory(" + level + ") - released " + released / 1024 + "KB, budget "
+                    + Math.round(mSizeFraction * 100) + "%");
+        }
+        return released;
+    }
+
+    /**
+     * Returns the fraction of the full memory budget to keep at a trim level.
+     */
+    private static float getTrimFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // The app isn't under pressure yet, it just can't be seen; keep what's cached for
+            // when it comes back
+            return 1f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1f;
+    }
+
+    /**
+     * Grows the memory budget back by a step if it was trimmed and there has been no pressure
+     * for a while.
+     */
+    private void maybeGrow() {
+        if (mSizeFraction >= 1f
+                || SystemClock.uptimeMillis() - mLastResizeMillis < GROWTH_INTERVAL_MILLIS) {
+            return;
+        }
+        synchronized (mResizeLock) {
+            final long now = SystemClock.uptimeMillis();
+            if (mSizeFraction < 1f && now - mLastResizeMillis >= GROWTH_INTERVAL_MILLIS) {
+                applySizeFraction(Math.min(1f, mSizeFraction + GROWTH_STEP));
+                mLastResizeMillis = now;
+            }
+        }
+    }
+
+    /**
+     * Sets the memory tiers and pool to a fraction of their full budgets, evicting what no
+     * longer fits. Must hold mResizeLock.
+     */
+    private void applySizeFraction(float fraction) {
+        mSizeFraction = fraction;
+        mThumbnailCache.resize(Math.max(1, Math.round(mThumbnailCacheSize * fraction)));
+        mDisplayCacheLimit = Math.round(mDisplayCacheSize * fraction);
+        mDisplayCache.trimToSize(mDisplayCacheLimit);
+        if (mThumbnailAtlas != null) {
+            mThumbnailAtlas.resize(Math.round(mAtlasSize * fraction));
+        }
+        // Bitmaps the tiers just evicted went to the pool, so shrink it last
+        mBitmapPool.resize(Math.round(mBitmapPoolSize * fraction));
+    }
+
+    /**
+     * Returns the bytes held by the memory tiers and the bitmap pool.
+     */
+    private long getMemoryUsage() {
+        return (mThumbnailCache.size() + (long) mDisplayCache.size()) * 1024L
+                + getAtlasSize() + mBitmapPool.size();
     }
 
 
@@ -125,45 +967,108 @@ public class ImageCache {
     }
 
 
-    public static RetainFragment findOrCreateRetainFragment(FragmentManager fm) {
-        // Check to see if we have retained the worker fragment.
-        RetainFragment mRetainFragment = (RetainFragment) fm.findFragmentByTag(TAG);
+    /**
+     * Returns a directory for a disk cache in the app's cache directory.
+     */
+    public static File getDiskCacheDir(Context context, String uniqueName) {
+        return new File(context.getCacheDir(), uniqueName);
+    }
 
-        // If not retained (or first time running), we need to create and add it.
-        if (mRetainFragment == null) {
-            mRetainFragment = new RetainFragment();
-            fm.beginTransaction().add(mRetainFragment, TAG).commitAllowingStateLoss();
+    /**
+     * The display references on a bitmap, and whether it has been evicted meanwhile.
+     */
+    private static class DisplayRefs {
+        int count;
+        boolean evicted;
+    }
+
+    private static class MissingEntry {
+        final long photoId;
+        final int generation;
+        final long expiresAt;
+
+        MissingEntry(long photoId, int generation, long expiresAt) {
+            this.photoId = photoId;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
         }
+    }
 
-        return mRetainFragment;
+    /**
+     * A contact's thumbnail, with the photo, size and variant it was made from so a lookup by
+     * contact id can tell whether it's still current.
+     */
+    private static class Thumbnail {
+        final long photoId;
+        final int size;
+        final String variant;
+        final Bitmap bitmap;
+
+        Thumbnail(ImageKey key, Bitmap bitmap) {
+            this.photoId = key.getPhotoId();
+            this.size = key.getSize();
+            this.variant = key.getVariant();
+            this.bitmap = bitmap;
+        }
     }
 
+    private static int getSizeInKilobytes(Bitmap bitmap) {
+        final int bitmapSize = getBitmapSize(bitmap) / 1024;
+        return bitmapSize == 0 ? 1 : bitmapSize;
+    }
 
-    public static class RetainFragment extends Fragment {
-        private Object mObject;
+    /**
+     * The thumbnail tier: one thumbnail per contact, sized in kilobytes, handing evicted
+     * bitmaps to the pool once no view shows them.
+     */
+    private class ThumbnailCache extends LongLruCache<Thumbnail> {
 
-        /**
-         * Empty constructor as per the Fragment documentation
-         */
-        public RetainFragment() {}
+        ThumbnailCache(int maxSizeKb) {
+            super(maxSizeKb);
+        }
 
         @Override
-        public void onCreate(Bundle savedInstanceState) {
-            super.onCreate(savedInstanceState);
+        protected int sizeOf(long contactId, Thumbnail thumbnail) {
+            return getSizeInKilobytes(thumbnail.bitmap);
+        }
 
-            // Make sure this Fragment is retained over a configuration change
-            setRetainInstance(true);
+        @Override
+        protected void entryRemoved(boolean evicted, long contactId, Thumbnail oldValue,
+                Thumbnail newValue) {
+            if (evicted) {
+                mMemoryEvictions.increment();
+                recycleEvicted(oldValue.bitmap);
+            }
         }
+    }
 
+    /**
+     * A memory cache sized in kilobytes that hands evicted bitmaps to the pool once no view
+     * shows them.
+     */
+    private class BitmapLruCache extends LruCache<ImageKey, Bitmap> {
 
-        public void setObject(Object object) {
-            mObject = object;
+        BitmapLruCache(int maxSizeKb) {
+            super(maxSizeKb);
         }
 
+        @Override
+        protected int sizeOf(ImageKey key, Bitmap bitmap) {
+            return getSizeInKilobytes(bitmap);
+        }
 
-        public Object getObject() {
-            return mObject;
+        /**
+         * Hands evicted bitmaps to the pool so their memory can be decoded into again, once no
+         * view shows them. Being least recently bound doesn't mean off screen: a prefetch or a
+         * trim can evict the bitmap of a visible row.
+         */
+        @Override
+        protected void entryRemoved(boolean evicted, ImageKey key, Bitmap oldValue,
+                Bitmap newValue) {
+            if (evicted) {
+                mMemoryEvictions.increment();
+                recycleEvicted(oldValue);
+            }
         }
     }
-
 }
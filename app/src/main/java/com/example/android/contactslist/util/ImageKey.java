@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.util;
+
+/**
+ * The key an image is cached under. A contact's photo is identified by the contact's id, the id
+ * of the photo itself, so a changed photo gets a new key, and the size it was decoded for. Any
+ * other image is identified by its source, such as a Uri, and size. Images that have been
+ * transformed after decoding, e.g. cropped to a circle, also carry a variant naming the
+ * transforms, so they are cached apart from the plain image. Keys are immutable and hash once,
+ * when they're created.
+ *
+ * Kept free of Android types so it can be benchmarked on a plain JVM.
+ */
+public final class ImageKey {
+    private static final String CONTACT_PREFIX = "contact:";
+    private static final char VARIANT_SEPARATOR = '#';
+    private static final char TRANSFORM_SEPARATOR = '+';
+
+    private final long mContactId;
+    private final long mPhotoId;
+    private final int mSize;
+    private final String mSource;
+    private final String mVariant;
+    private final int mHash;
+
+    private ImageKey(long contactId, long photoId, int size, String source, String variant) {
+        mContactId = contactId;
+        mPhotoId = photoId;
+        mSize = size;
+        mSource = source;
+        mVariant = variant;
+        final int hash = source != null
+                ? source.hashCode() * 31 + size : hash(contactId, photoId, size);
+        mHash = variant != null ? hash * 31 + variant.hashCode() : hash;
+    }
+
+    /**
+     * Returns the key of a contact's photo decoded for {@code size}.
+     */
+    public static ImageKey forContact(long contactId, long photoId, int size) {
+        return new ImageKey(contactId, photoId, size, null, null);
+    }
+
+    /**
+     * Returns the key of a contact's photo decoded for {@code size} and transformed as named by
+     * {@code variant}, or untransformed if it is null. The variant mustn't contain '@'.
+     */
+    public static ImageKey forContact(long contactId, long photoId, int size, String variant) {
+        return new ImageKey(contactId, photoId, size, null, variant);
+    }
+
+    /**
+     * Returns the key of the image from {@code data} decoded for {@code size}.
+     */
+    public static ImageKey forSource(Object data, int size) {
+        return new ImageKey(0, 0, size, String.valueOf(data), null);
+    }
+
+    /**
+     * Returns the key of the image from {@code data} decoded for {@code size} and transformed
+     * as named by {@code variant}, or untransformed if it is null.
+     */
+    public static ImageKey forSource(Object data, int size, String variant) {
+        return new ImageKey(0, 0, size, String.valueOf(data), variant);
+    }
+
+    /**
+     * Parses a key written by {@link #toString()}, e.g. one passed to another activity.
+     *
+     * @return The key, or null if {@code key} is null or malformed.
+     */
+    public static ImageKey fromString(String key) {
+        if (key == null) {
+            return null;
+        }
+        final int at = key.lastIndexOf('@');
+        if (at < 0) {
+            return null;
+        }
+        final int separator = key.indexOf(VARIANT_SEPARATOR, at);
+        final String variant = separator >= 0 ? key.substring(separator + 1) : null;
+        try {
+            final int size = Integer.parseInt(
+                    key.substring(at + 1, separator >= 0 ? separator : key.length()));
+            if (key.startsWith(CONTACT_PREFIX)) {
+                final int colon = key.indexOf(':', CONTACT_PREFIX.length());
+                if (colon < 0 || colon > at) {
+                    return null;
+                }
+                return forContact(
+                        Long.parseLong(key.substring(CONTACT_PREFIX.length(), colon)),
+                        Long.parseLong(key.substring(colon + 1, at)), size, variant);
+            }
+            return new ImageKey(0, 0, size, key.substring(0, at), variant);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if this is the key of a contact's photo rather than of a source.
+     */
+    public boolean isContact() {
+        return mSource == null;
+    }
+
+    /**
+     * Returns true if this is the key of the given contact photo at the given size and variant.
+     * Lets callers compare against a key without allocating one.
+     */
+    public boolean matches(long contactId, long photoId, int size, String variant) {
+        return mSource == null && mContactId == contactId && mPhotoId == photoId
+                && mSize == size && sameVariant(mVariant, variant);
+    }
+
+    public long getContactId() {
+        return mContactId;
+    }
+
+    public long getPhotoId() {
+        return mPhotoId;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the name of the transforms applied to the image, or null if there were none.
+     */
+    public String getVariant() {
+        return mVariant;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ImageKey)) {
+            return false;
+        }
+        final ImageKey other = (ImageKey) o;
+        if (mHash != other.mHash || mSize != other.mSize
+                || !sameVariant(mVariant, other.mVariant)) {
+            return false;
+        }
+        return mSource != null ? mSource.equals(other.mSource)
+                : other.mSource == null && mContactId == other.mContactId
+                        && mPhotoId == other.mPhotoId;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    /**
+     * Returns the key as a string, which {@link #fromString} turns back into the key.
+     */
+    @Override
+    public String toString() {
+        final String key = mSource != null ? mSource + '@' + mSize
+                : CONTACT_PREFIX + mContactId + ':' + mPhotoId + '@' + mSize;
+        return mVariant != null ? key + VARIANT_SEPARATOR + mVariant : key;
+    }
+
+    /**
+     * Returns the variant of images transformed as named by {@code variant}, or not at all if
+     * it is null, and then by the transform named {@code transformName}. Transforms are
+     * separated by '+', so the same transforms in the same order always make the same variant.
+     *
+     * @throws IllegalArgumentException if the name is empty, or contains '@', '#' or '+', which
+     *         would make keys written by {@link #toString()} ambiguous.
+     */
+    public static String appendTransform(String variant, String transformName) {
+        if (transformName == null || transformName.length() == 0
+                || transformName.indexOf('@') >= 0
+                || transformName.indexOf(VARIANT_SEPARATOR) >= 0
+                || transformName.indexOf(TRANSFORM_SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Invalid transform name: " + transformName);
+        }
+        return variant != null ? variant + TRANSFORM_SEPARATOR + transformName : transformName;
+    }
+
+    /**
+     * Compares two variants, either of which may be null.
+     */
+    public static boolean sameVariant(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int hash(long contactId, long photoId, int size) {
+        long hash = contactId * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ photoId) * 0x9E3779B97F4A7C15L;
+        hash ^= size;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -16,42 +16,216 @@
 
 package com.example.android.contactslist.util;
 
-import android.annotation.TargetApi;
 import android.content.Context;
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.TransitionDrawable;
-import android.os.AsyncTask;
+import android.graphics.drawable.LayerDrawable;
+import android.net.Uri;
 import android.os.Build;
-import android.support.v4.app.FragmentManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ImageView;
 
 import com.example.android.contactslist.BuildConfig;
 
 import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
-
-
-public abstract class ImageLoader {
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+
+/**
+ * Loads images into ImageViews in the background, through the process-wide
+ * {@link ImageCache}. A load that misses the memory and disk caches runs a pipeline of stages,
+ * each timed in {@link #getMetrics()}:
+ * <ol>
+ * <li>fetch: the {@link ImageSource} names the Uris the image may be at, and the first one the
+ * provider can open is used ({@link #METRIC_OPEN_TIME});</li>
+ * <li>probe: the image header is read for its dimensions ({@link #METRIC_HEADER_TIME}), see
+ * {@link #probeImage};</li>
+ * <li>decode: the pixels are decoded at the size needed ({@link #METRIC_DECODE_TIME}), see
+ * {@link #decodeImage};</li>
+ * <li>transform: each {@link Transform} added, such as {@link CircleCropTransform}, is applied
+ * in turn ({@link #METRIC_TRANSFORM_TIME});</li>
+ * <li>cache: the result is stored in memory and on disk ({@link #METRIC_CACHE_TIME}).</li>
+ * </ol>
+ * Transformed images are cached under keys naming their transforms, see
+ * {@link ImageKey#appendTransform}, so later loads skip both the decode and the transforms.
+ * Subclasses may replace the fetch, probe and decode stages by overriding
+ * {@link #processBitmap}.
+ */
+public class ImageLoader {
     private static final String TAG = "ImageLoader";
     private static final int FADE_IN_TIME = 200;
+    private static final int DEFAULT_MAX_PENDING_WORK = 32;
+
+    // Weight of the newest sample in the moving average of decode times
+    private static final float DECODE_TIME_SMOOTHING = 0.2f;
+
+    // Names of the metrics reported by getMetrics()
+    public static final String METRIC_REQUESTS = "requests";
+    public static final String METRIC_LOADS_STARTED = "loads.started";
+    public static final String METRIC_LOADS_JOINED = "loads.joined";
+    public static final String METRIC_LOADS_DELIVERED = "loads.delivered";
+    public static final String METRIC_LOADS_CANCELLED = "loads.cancelled";
+    public static final String METRIC_LOADS_DROPPED = "loads.dropped";
+    public static final String METRIC_LOADS_ABORTED = "loads.aborted";
+    public static final String METRIC_PREFETCHES = "prefetches";
+    public static final String METRIC_QUEUE_PENDING = "queue.pending";
+    public static final String METRIC_QUEUE_DEPTH = "queue.depth";
+    public static final String METRIC_PAUSE_TIME = "pause.ms";
+    public static final String METRIC_PARKED = "pause.parked";
+    public static final String METRIC_OPEN_TIME = "decode.open_us";
+    public static final String METRIC_HEADER_TIME = "decode.header_us";
+    public static final String METRIC_DECODE_TIME = "decode.pixels_us";
+    // From a view starting to wait for a load to the load showing in it
+    public static final String METRIC_LOAD_TIME = "load.ms";
+    public static final String METRIC_WASTED_DECODE_TIME = "decode.wasted_ms";
+    public static final String METRIC_TRANSFORM_TIME = "transform.us";
+    public static final String METRIC_CACHE_TIME = "cache.put_us";
 
     private ImageCache mImageCache;
     private Bitmap mLoadingBitmap;
     private boolean mFadeInBitmap = true;
-    private boolean mPauseWork = false;
-    private final Object mPauseWorkLock = new Object();
+    private volatile boolean mPauseWork = false;
+    private boolean mExactSizeDecoding = false;
     private int mImageSize;
     private Resources mResources;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private PriorityExecutor mExecutor;
+    private int mDecodeThreadCount = PriorityExecutor.getDefaultThreadCount();
+    private int mMaxPendingWork = DEFAULT_MAX_PENDING_WORK;
+    private volatile float mAverageDecodeMillis;
+    private long mPauseStartMillis;
+
+    private final Metrics mMetrics = new Metrics(TAG);
+    private final Metrics.Counter mRequests = mMetrics.counter(METRIC_REQUESTS);
+    private final Metrics.Counter mLoadsStarted = mMetrics.counter(METRIC_LOADS_STARTED);
+    private final Metrics.Counter mLoadsJoined = mMetrics.counter(METRIC_LOADS_JOINED);
+    private final Metrics.Counter mLoadsDelivered =
+            mMetrics.counter(METRIC_LOADS_DELIVERED);
+    private final Metrics.Counter mLoadsCancelled =
+            mMetrics.counter(METRIC_LOADS_CANCELLED);
+    private final Metrics.Counter mLoadsDropped = mMetrics.counter(METRIC_LOADS_DROPPED);
+    private final Metrics.Counter mLoadsAborted = mMetrics.counter(METRIC_LOADS_ABORTED);
+    private final Metrics.Counter mPrefetches = mMetrics.counter(METRIC_PREFETCHES);
+    private final Metrics.Histogram mQueueDepth =
+            mMetrics.histogram(METRIC_QUEUE_DEPTH, "");
+    private final Metrics.Histogram mPauseTime = mMetrics.histogram(METRIC_PAUSE_TIME, "ms");
+    private final Metrics.Counter mParked = mMetrics.counter(METRIC_PARKED);
+    private final Metrics.Histogram mOpenTime = mMetrics.histogram(METRIC_OPEN_TIME, "us");
+    private final Metrics.Histogram mHeaderTime =
+            mMetrics.histogram(METRIC_HEADER_TIME, "us");
+    private final Metrics.Histogram mDecodeTime =
+            mMetrics.histogram(METRIC_DECODE_TIME, "us");
+    private final Metrics.Histogram mLoadTime = mMetrics.histogram(METRIC_LOAD_TIME, "ms");
+    private final Metrics.Counter mWastedDecodeTime =
+            mMetrics.counter(METRIC_WASTED_DECODE_TIME);
+    private final Metrics.Histogram mTransformTime =
+            mMetrics.histogram(METRIC_TRANSFORM_TIME, "us");
+    private final Metrics.Histogram mCacheTime =
+            mMetrics.histogram(METRIC_CACHE_TIME, "us");
+
+    private final ImageSource mSource;
+    private final ContentResolver mContentResolver;
+
+    // Applied in order to every decoded image, and named by mVariant in cache keys
+    private final ArrayList<Transform> mTransforms = new ArrayList<Transform>();
+    private String mVariant;
+
+    // Loads that have been started but not delivered yet, keyed by cache key. Only touched on
+    // the UI thread.
+    private final HashMap<ImageKey, BitmapWorkerTask> mInFlight =
+            new HashMap<ImageKey, BitmapWorkerTask>();
+
+    // The load running on each decode thread, for markMissing() and decodeBitmap()
+    private final ThreadLocal<BitmapWorkerTask> mCurrentTask =
+            new ThreadLocal<BitmapWorkerTask>();
+
+    // Loads requested while work is paused, oldest first. Parked loads don't hold a thread;
+    // they are handed to the executor when work resumes. Only touched on the UI thread.
+    private final ArrayList<BitmapWorkerTask> mParkedWork = new ArrayList<BitmapWorkerTask>();
+
+    /**
+     * The first stage of the pipeline: where an image comes from.
+     */
+    public interface ImageSource {
+        /**
+         * Returns the Uris the image for {@code data} may be opened from, best first, or null
+         * if there's nothing to load. Called on a decode thread.
+         */
+        Uri[] getUris(Object data);
+    }
 
-    protected ImageLoader(Context context, int imageSize) {
+    /**
+     * A stage applied to every decoded image before it is cached.
+     */
+    public interface Transform {
+        /**
+         * Returns a short name for the transform, such as "circle", which becomes part of the
+         * cache key of transformed images. It mustn't contain '@', '#' or '+'.
+         */
+        String getName();
+
+        /**
+         * Returns the transformed image, which may be {@code source} itself. Called on a decode
+         * thread.
+         *
+         * @param bitmapPool Where {@code source} may be returned once it's no longer needed, and
+         *                   a bitmap for the result may be taken from. May be null.
+         */
+        Bitmap transform(Bitmap source, BitmapPool bitmapPool);
+    }
+
+    /**
+     * Creates a loader for images of {@code imageSize} pixels, loaded from the Uris named by
+     * {@code source}.
+     */
+    public ImageLoader(Context context, int imageSize, ImageSource source) {
         mResources = context.getResources();
+        mContentResolver = context.getApplicationContext().getContentResolver();
         mImageSize = imageSize;
+        mSource = source;
+
+        mMetrics.gauge(METRIC_QUEUE_PENDING, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getPendingWorkCount();
+            }
+        });
+    }
+
+    /**
+     * Returns this loader's request, queue and timing metrics. See the {@code METRIC_} constants
+     * for the names, and {@link ImageCache#getMetrics()} for the cache's.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Writes this loader's metrics, and its cache's, in a form suited to {@code dumpsys}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        mMetrics.dump(prefix, writer);
+        if (mImageCache != null) {
+            mImageCache.dump(prefix, writer);
+        }
     }
 
     public int getImageSize() {
@@ -60,74 +234,539 @@ public abstract class ImageLoader {
 
 
     public void loadImage(Object data, ImageView imageView) {
+        loadImage(data, imageView, null);
+    }
+
+    /**
+     * Loads an image progressively: if the image for {@code previewKey} is already in memory,
+     * such as a contact's list thumbnail, it is shown straight away, scaled by the view, in place
+     * of the loading image. The image for {@code data} then replaces it once it is decoded.
+     *
+     * @param previewKey The key another loader cached a smaller version of this image under,
+     *                   or null to show the loading image.
+     */
+    public void loadImage(Object data, ImageView imageView, ImageKey previewKey) {
+        loadImage(data, imageView, previewKey, null);
+    }
+
+    /**
+     * Like {@link #loadImage(Object, ImageView, ImageKey)}, but shows {@code placeholder} instead
+     * of the loading image, both while the image loads and if there is no image.
+     *
+     * @param placeholder The image to show for this particular view, or null to use the loading
+     *                    image.
+     */
+    public void loadImage(Object data, ImageView imageView, ImageKey previewKey,
+            Bitmap placeholder) {
+        if (placeholder == null) {
+            placeholder = mLoadingBitmap;
+        }
         if (data == null) {
-            imageView.setImageBitmap(mLoadingBitmap);
+            cancelWork(imageView);
+            showImage(imageView, placeholder, null, false);
+            return;
+        }
+        load(data, getCacheKey(data), imageView, previewKey, placeholder);
+    }
+
+    /**
+     * Loads a contact's photo, keyed by the contact and photo ids rather than by {@code data}.
+     * When the photo is already in memory, or known not to exist, or already loading for this
+     * view, nothing is allocated, so this is the call to make while binding list rows.
+     *
+     * @param data The source passed to {@link #processBitmap}, or null if the contact has no
+     *             photo.
+     * @param placeholder The image to show while loading, or if there is no photo, or null to
+     *                    use the loading image.
+     */
+    public void loadContactImage(long contactId, long photoId, Object data, ImageView imageView,
+            Bitmap placeholder) {
+        if (placeholder == null) {
+            placeholder = mLoadingBitmap;
+        }
+        if (data == null) {
+            cancelWork(imageView);
+            showImage(imageView, placeholder, null, false);
+            return;
+        }
+
+        if (mImageCache != null) {
+            if (mImageCache.usesThumbnailAtlas(mImageSize)) {
+                final Drawable drawable = mImageCache.getThumbnailDrawable(contactId, photoId,
+                        mImageSize, mVariant, getReusableAtlasDrawable(imageView));
+                if (drawable != null) {
+                    mRequests.increment();
+                    cancelWork(imageView);
+                    showImage(imageView, null, drawable, false);
+                    return;
+                }
+            }
+            // Atlas-sized thumbnails are only here if the atlas had no room for them
+            final Bitmap bitmap =
+                    mImageCache.acquireThumbnail(contactId, photoId, mImageSize, mVariant);
+            if (bitmap != null) {
+                mRequests.increment();
+                cancelWork(imageView);
+                showImage(imageView, bitmap, null, false);
+                return;
+            }
+            if (mImageCache.isKnownMissing(contactId, photoId)) {
+                mRequests.increment();
+                cancelWork(imageView);
+                showImage(imageView, placeholder, null, false);
+                return;
+            }
+        }
+
+        final BitmapWorkerTask current = getBitmapWorkerTask(imageView);
+        if (current != null && !current.isCancelled()
+                && current.key.matches(contactId, photoId, mImageSize, mVariant)) {
+            // The same load is already in progress for this view; only the placeholder may have
+            // changed, such as a letter tile that has finished rendering
+            mRequests.increment();
+            updatePlaceholder(imageView, placeholder, current);
             return;
         }
+        load(data, getContactKey(contactId, photoId), imageView, null, placeholder);
+    }
 
+    /**
+     * Shows a new placeholder in a view waiting for {@code task}, unless it's showing a preview.
+     * Allocates only if the placeholder has changed.
+     */
+    private void updatePlaceholder(ImageView imageView, Bitmap placeholder,
+            BitmapWorkerTask task) {
+        final AsyncDrawable current = (AsyncDrawable) imageView.getDrawable();
+        if (current.mPlaceholder != null && current.mPlaceholder != placeholder) {
+            final AsyncDrawable asyncDrawable = new AsyncDrawable(
+                    new BitmapDrawable(mResources, placeholder), null, placeholder, task);
+            asyncDrawable.mFadeInDrawable = current.mFadeInDrawable;
+            imageView.setImageDrawable(asyncDrawable);
+        }
+    }
+
+    private void load(Object data, ImageKey key, ImageView imageView, ImageKey previewKey,
+            Bitmap placeholder) {
+        mRequests.increment();
         Bitmap bitmap = null;
+        Drawable atlased = null;
 
         if (mImageCache != null) {
-            bitmap = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            if (isAtlasKey(key)) {
+                atlased = mImageCache.getThumbnailDrawable(key.getContactId(),
+                        key.getPhotoId(), key.getSize(), key.getVariant(),
+                        getReusableAtlasDrawable(imageView));
+            }
+            if (atlased == null) {
+                bitmap = mImageCache.acquireBitmap(key);
+            }
         }
 
         if (bitmap != null) {
             // Bitmap found in memory cache
-            imageView.setImageBitmap(bitmap);
-        } else if (cancelPotentialWork(data, imageView)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
-            final AsyncDrawable asyncDrawable =
-                    new AsyncDrawable(mResources, mLoadingBitmap, task);
+            cancelWork(imageView);
+            showImage(imageView, bitmap, null, false);
+        } else if (atlased != null) {
+            cancelWork(imageView);
+            showImage(imageView, null, atlased, false);
+        } else if (mImageCache != null && mImageCache.isKnownMissing(key)) {
+            // Already known to have no image, don't even schedule a load
+            cancelWork(imageView);
+            showImage(imageView, placeholder, null, false);
+        } else if (cancelPotentialWork(key, imageView)) {
+            // If another view is already waiting for this image, wait on the same load rather
+            // than decoding it twice
+            BitmapWorkerTask task = mInFlight.get(key);
+            if (task == null || task.isCancelled()) {
+                task = new BitmapWorkerTask(data, key);
+                mInFlight.put(key, task);
+                mLoadsStarted.increment();
+                submit(task, PriorityExecutor.PRIORITY_NORMAL);
+            } else {
+                // A low priority prefetch becomes urgent once a view is waiting for it
+                promote(task, PriorityExecutor.PRIORITY_NORMAL);
+                mLoadsJoined.increment();
+            }
+            task.attach(imageView);
+            final AsyncDrawable asyncDrawable = newAsyncDrawable(previewKey, placeholder, task);
+            releaseImage(imageView);
+            asyncDrawable.mFadeInDrawable = getFadeInDrawable(imageView);
             imageView.setImageDrawable(asyncDrawable);
-            task.execute(data);
         }
     }
 
+    /**
+     * Returns a drawable showing the image cached for {@code previewKey}, from the atlas or a
+     * memory tier, or else the placeholder, while {@code task} loads. The preview lookup isn't
+     * counted as a cache hit or miss; only the lookup for the image itself is.
+     */
+    private AsyncDrawable newAsyncDrawable(ImageKey previewKey, Bitmap placeholder,
+            BitmapWorkerTask task) {
+        if (previewKey != null && mImageCache != null) {
+            if (isAtlasKey(previewKey)) {
+                final Drawable preview = mImageCache.getThumbnailDrawableQuietly(
+                        previewKey.getContactId(), previewKey.getPhotoId(),
+                        previewKey.getSize(), previewKey.getVariant());
+                if (preview != null) {
+                    return new AsyncDrawable(preview, null, null, task);
+                }
+            }
+            final Bitmap preview = mImageCache.acquireBitmapQuietly(previewKey);
+            if (preview != null) {
+                return new AsyncDrawable(
+                        new BitmapDrawable(mResources, preview), preview, null, task);
+            }
+        }
+        return new AsyncDrawable(
+                new BitmapDrawable(mResources, placeholder), null, placeholder, task);
+    }
+
+    /**
+     * Records that the image being loaded doesn't exist, so later requests for it go straight
+     * to the placeholder. Call from {@link #processBitmap} when the source doesn't exist, as
+     * opposed to failing to decode. Only contact photos are remembered, see
+     * {@link ImageCache#markMissing}.
+     */
+    public void markMissing() {
+        final BitmapWorkerTask task = mCurrentTask.get();
+        if (task != null && mImageCache != null) {
+            mImageCache.markMissing(task.key);
+        }
+    }
+
+    /**
+     * Returns true if the image for {@code key} is kept in the cache's thumbnail atlas rather
+     * than as a bitmap.
+     */
+    private boolean isAtlasKey(ImageKey key) {
+        return key.isContact() && mImageCache.usesThumbnailAtlas(key.getSize());
+    }
+
+    /**
+     * Returns the key this loader caches the image for {@code data} under.
+     */
+    public ImageKey getCacheKey(Object data) {
+        return ImageKey.forSource(data, mImageSize, mVariant);
+    }
+
+    /**
+     * Returns the key this loader caches a contact's photo under, see
+     * {@link #loadContactImage}.
+     */
+    public ImageKey getContactKey(long contactId, long photoId) {
+        return ImageKey.forContact(contactId, photoId, mImageSize, mVariant);
+    }
+
+    /**
+     * Loads an image into the cache at low priority without displaying it, so it is ready by
+     * the time a view asks for it. A view that asks while the prefetch is still running joins
+     * it rather than starting a second load.
+     */
+    public void prefetch(Object data) {
+        if (data != null) {
+            prefetch(getCacheKey(data), data);
+        }
+    }
+
+    /**
+     * Prefetches the image for {@code data} under the given key, such as one from
+     * {@link #getContactKey}.
+     */
+    public void prefetch(ImageKey key, Object data) {
+        if (key == null || data == null || mImageCache == null) {
+            return;
+        }
+
+        if (mInFlight.containsKey(key) || mImageCache.isKnownMissing(key)) {
+            return;
+        }
+        if (mImageCache.isInMemory(key)) {
+            return;
+        }
+
+        final BitmapWorkerTask task = new BitmapWorkerTask(data, key);
+        task.mPrefetch = true;
+        mInFlight.put(key, task);
+        mPrefetches.increment();
+        submit(task, PriorityExecutor.PRIORITY_LOW);
+    }
+
+    /**
+     * Withdraws a prefetch made with {@link #prefetch}. The load is only cancelled if no view
+     * has started waiting for it in the meantime.
+     */
+    public void cancelPrefetch(ImageKey key) {
+        if (key == null) {
+            return;
+        }
+        final BitmapWorkerTask task = mInFlight.get(key);
+        if (task != null && task.mPrefetch) {
+            task.mPrefetch = false;
+            task.detach(null);
+        }
+    }
+
+    /**
+     * Loads an image into the cache on the calling thread, which must not be the UI thread,
+     * through the same pipeline as a view's load. For warming the cache before any view exists.
+     *
+     * @return True if the image is in memory once this returns.
+     */
+    public boolean loadIntoCache(ImageKey key, Object data) {
+        if (key == null || data == null || mImageCache == null
+                || mImageCache.isKnownMissing(key)) {
+            return false;
+        }
+        if (mImageCache.isInMemory(key)) {
+            return true;
+        }
+
+        final BitmapWorkerTask task = new BitmapWorkerTask(data, key);
+        task.mPrefetch = true;
+        mPrefetches.increment();
+        final Bitmap bitmap = task.doInBackground();
+        // No view to hand the display reference, or the atlas cell, to
+        if (bitmap != null) {
+            mImageCache.releaseBitmap(bitmap);
+        }
+        if (task.mAtlasDrawable != null) {
+            task.mAtlasDrawable.release();
+        }
+        return bitmap != null || task.mAtlasDrawable != null;
+    }
+
+    /**
+     * Returns a moving average of how long decoding one image takes, in milliseconds, or 0 if
+     * nothing has been decoded yet.
+     */
+    public float getAverageDecodeTime() {
+        return mAverageDecodeMillis;
+    }
+
+    public int getDecodeThreadCount() {
+        return mDecodeThreadCount;
+    }
+
+    /**
+     * Sets how many images this loader may decode at the same time. Each loader owns its own
+     * threads, so a busy list can't starve the detail view. Must be called before the first
+     * image is loaded.
+     */
+    public void setDecodeThreadCount(int threadCount) {
+        mDecodeThreadCount = threadCount;
+    }
+
+    /**
+     * Sets how many requests may wait for a decode thread. Once the limit is reached, the lowest
+     * priority request made longest ago is dropped, unless a view is still waiting for it.
+     * Must be called before the first image is loaded.
+     */
+    public void setMaxPendingWork(int maxPendingWork) {
+        mMaxPendingWork = maxPendingWork;
+    }
+
+    /**
+     * Hands a task to the executor, or parks it if work is paused.
+     */
+    private void submit(BitmapWorkerTask task, int priority) {
+        task.mRequestedPriority = priority;
+        mQueueDepth.record(getPendingWorkCount());
+        if (mPauseWork) {
+            mParked.increment();
+            mParkedWork.add(task);
+            // Bound the parked queue like the executor's: the lowest priority, oldest request
+            // goes first, but never one a view is still waiting for
+            while (mParkedWork.size() > mMaxPendingWork) {
+                final BitmapWorkerTask stalest = findStalestParkedWork();
+                if (stalest == null) {
+                    break;
+                }
+                mParkedWork.remove(stalest);
+                stalest.onDropped();
+            }
+        } else {
+            getExecutor().execute(task, priority);
+        }
+    }
+
+    /**
+     * Returns the lowest priority, oldest parked task that may be dropped, or null if every one
+     * has a view waiting for it.
+     */
+    private BitmapWorkerTask findStalestParkedWork() {
+        BitmapWorkerTask stalest = null;
+        for (int i = 0; i < mParkedWork.size(); i++) {
+            final BitmapWorkerTask task = mParkedWork.get(i);
+            if ((stalest == null || task.mRequestedPriority < stalest.mRequestedPriority)
+                    && task.isDroppable()) {
+                stalest = task;
+            }
+        }
+        return stalest;
+    }
+
+    private void promote(BitmapWorkerTask task, int priority) {
+        if (priority > task.mRequestedPriority) {
+            task.mRequestedPriority = priority;
+            getExecutor().promote(task, priority);
+        }
+    }
+
+    /**
+     * Returns how many loads are parked or waiting for a decode thread.
+     */
+    private int getPendingWorkCount() {
+        final PriorityExecutor executor = mExecutor;
+        return mParkedWork.size() + (executor != null ? executor.getQueue().size() : 0);
+    }
+
+    private PriorityExecutor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = new PriorityExecutor(TAG, mDecodeThreadCount, mMaxPendingWork);
+        }
+        return mExecutor;
+    }
+
 
     public void setLoadingImage(int resId) {
         mLoadingBitmap = BitmapFactory.decodeResource(mResources, resId);
     }
 
 
-    public void addImageCache(FragmentManager fragmentManager, float memCacheSizePercent) {
-        mImageCache = ImageCache.getInstance(fragmentManager, memCacheSizePercent);
+    /**
+     * Adds the process-wide image cache to this loader. Memory misses are looked up on disk in
+     * the background before {@link #processBitmap} is called.
+     */
+    public void addImageCache(Context context) {
+        mImageCache = ImageCache.getInstance(context);
+    }
+
+    /**
+     * Keeps this loader's contact thumbnails in the cache's {@link ThumbnailAtlas} rather than
+     * as a bitmap each, which suits a long list of same-sized thumbnails. Call after
+     * {@link #addImageCache}.
+     */
+    public void setUseThumbnailAtlas(boolean useAtlas) {
+        if (useAtlas && mImageCache != null) {
+            mImageCache.enableThumbnailAtlas(mImageSize);
+        }
+    }
+
+    /**
+     * Keeps this loader's contact thumbnails in the cache's {@link ThumbnailPack} on disk, so
+     * they are read back without decoding. Call after {@link #addImageCache}.
+     */
+    public void setUseThumbnailPack(boolean usePack) {
+        if (usePack && mImageCache != null) {
+            mImageCache.enableThumbnailPack(mImageSize);
+        }
+    }
+
+    /**
+     * Returns the pool of reusable bitmaps from this loader's cache, or null if it has none.
+     */
+    public BitmapPool getBitmapPool() {
+        return mImageCache != null ? mImageCache.getBitmapPool() : null;
+    }
+
+    /**
+     * If set to true, {@link #decodeBitmap} produces bitmaps at exactly the requested size,
+     * decoding opaque photos as RGB_565, instead of anything up to twice the requested pixels
+     * in ARGB_8888. The same cache budget then holds several times more images.
+     */
+    public void setExactSizeDecoding(boolean exactSize) {
+        mExactSizeDecoding = exactSize;
     }
 
     /**
      * If set to true, the image will fade-in once it has been loaded by the background thread.
+     * Either way images are shown through a {@link FadeInDrawable} kept by each view, so binding
+     * a view to a cached image doesn't allocate a drawable.
      */
     public void setImageFadeIn(boolean fadeIn) {
         mFadeInBitmap = fadeIn;
     }
 
 
-    protected abstract Bitmap processBitmap(Object data);
+    /**
+     * Adds a transform to apply to every image after it is decoded, after any added before it.
+     * Must be called before the first image is loaded.
+     */
+    public void addTransform(Transform transform) {
+        mVariant = ImageKey.appendTransform(mVariant, transform.getName());
+        mTransforms.add(transform);
+    }
+
+    /**
+     * Fetches and decodes the image for {@code data}: each Uri the source names is tried in turn
+     * until one can be opened, and that one is decoded. If none exists, the image is marked
+     * missing, see {@link #markMissing()}. Called on a decode thread.
+     *
+     * @return The decoded image, or null if there is none or it couldn't be decoded.
+     */
+    protected Bitmap processBitmap(Object data) {
+        final Uri[] uris = mSource != null ? mSource.getUris(data) : null;
+        if (uris == null) {
+            return null;
+        }
+        for (int i = 0; i < uris.length; i++) {
+            AssetFileDescriptor afd = null;
+            try {
+                afd = openImageDescriptor(mContentResolver, uris[i]);
+                if (afd != null && afd.getFileDescriptor() != null) {
+                    return decodeBitmap(afd, mImageSize, mImageSize);
+                }
+            } catch (FileNotFoundException e) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "processBitmap - not found: " + uris[i]);
+                }
+                continue;
+            } finally {
+                if (afd != null) {
+                    try {
+                        afd.close();
+                    } catch (IOException e) {}
+                }
+            }
+            // Opened but empty
+            return null;
+        }
+        // Remember that there's no image so rebinding doesn't ask again
+        markMissing();
+        return null;
+    }
 
     /**
-     * Cancels any pending work attached to the provided ImageView.
+     * Runs the transforms over a decoded image, timing each.
+     */
+    private Bitmap applyTransforms(Bitmap bitmap) {
+        final BitmapPool bitmapPool = getBitmapPool();
+        for (int i = 0; i < mTransforms.size() && bitmap != null; i++) {
+            final long start = System.nanoTime();
+            bitmap = mTransforms.get(i).transform(bitmap, bitmapPool);
+            mTransformTime.record((System.nanoTime() - start) / 1000);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Cancels any pending work attached to the provided ImageView. The underlying load is only
+     * aborted once no other view is waiting for it.
      */
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
-            if (BuildConfig.DEBUG) {
-                final Object bitmapData = bitmapWorkerTask.data;
-                Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
-            }
+            bitmapWorkerTask.detach(imageView);
         }
     }
 
 
-    public static boolean cancelPotentialWork(Object data, ImageView imageView) {
+    public static boolean cancelPotentialWork(ImageKey key, ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 
         if (bitmapWorkerTask != null) {
-            final Object bitmapData = bitmapWorkerTask.data;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
-                }
+            if (!bitmapWorkerTask.key.equals(key) || bitmapWorkerTask.isCancelled()) {
+                bitmapWorkerTask.detach(imageView);
             } else {
                 // The same work is already in progress.
                 return false;
@@ -149,101 +788,352 @@ public abstract class ImageLoader {
     }
 
     /**
-     * The actual AsyncTask that will asynchronously process the image.
+     * The job that will asynchronously process the image on the loader's executor. One task is
+     * shared by every view waiting for the same cache key.
      */
-    private class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap> {
-        private Object data;
-        private final WeakReference<ImageView> imageViewReference;
+    private class BitmapWorkerTask extends PriorityExecutor.Job {
+        private final Object data;
+        private final ImageKey key;
+        private final ArrayList<WeakReference<ImageView>> mWaiters =
+                new ArrayList<WeakReference<ImageView>>(1);
+        private volatile boolean mCancelled;
+
+        // True while the load was requested by prefetch() and not withdrawn. A prefetch runs
+        // even when no view is waiting for it.
+        private volatile boolean mPrefetch;
+
+        private int mRequestedPriority;
+
+        // When the first view started waiting for this load, or 0 if none has
+        private long mWaitingSinceMillis;
+
+        // Set instead of a bitmap result when the image was copied into the thumbnail atlas
+        private ThumbnailAtlas.AtlasDrawable mAtlasDrawable;
+
+        // The decode running in decodeBitmap(), if any, so cancel() can abort it part way
+        private final Object mDecodeLock = new Object();
+        private BitmapFactory.Options mDecodeOptions;
+        private DescriptorStream mDecodeStream;
+        private boolean mDecodeAborted;
+
+        public BitmapWorkerTask(Object data, ImageKey key) {
+            this.data = data;
+            this.key = key;
+        }
 
-        public BitmapWorkerTask(ImageView imageView) {
-            imageViewReference = new WeakReference<ImageView>(imageView);
+        /**
+         * Registers a view that wants the result of this load.
+         */
+        public void attach(ImageView imageView) {
+            synchronized (mWaiters) {
+                mWaiters.add(new WeakReference<ImageView>(imageView));
+            }
+            if (mWaitingSinceMillis == 0) {
+                mWaitingSinceMillis = SystemClock.uptimeMillis();
+            }
         }
 
         /**
-         * Background processing.
+         * Unregisters a view, cancelling the load if no other view is still waiting for it.
          */
-        @Override
-        protected Bitmap doInBackground(Object... params) {
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - starting work");
+        public void detach(ImageView imageView) {
+            final boolean unwanted;
+            synchronized (mWaiters) {
+                final Iterator<WeakReference<ImageView>> iterator = mWaiters.iterator();
+                while (iterator.hasNext()) {
+                    final ImageView waiter = iterator.next().get();
+                    if (waiter == null || waiter == imageView) {
+                        iterator.remove();
+                    }
+                }
+                unwanted = mWaiters.isEmpty() && !mPrefetch;
             }
+            if (unwanted) {
+                cancel();
+            }
+        }
 
-            data = params[0];
-            final String dataString = String.valueOf(data);
-            Bitmap bitmap = null;
+        @Override
+        public void run() {
+            // If work was paused after this task was queued, give the thread back and park the
+            // task until work resumes
+            if (mPauseWork && !isCancelled()) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled()) {
+                            submit(BitmapWorkerTask.this, mRequestedPriority);
+                        }
+                    }
+                });
+                return;
+            }
 
-            // Wait here if work is paused and the task is not cancelled
-            synchronized (mPauseWorkLock) {
-                while (mPauseWork && !isCancelled()) {
-                    try {
-                        mPauseWorkLock.wait();
-                    } catch (InterruptedException e) {}
+            final Bitmap bitmap = doInBackground();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPostExecute(bitmap);
                 }
-            }
+            });
+        }
 
+        public boolean isCancelled() {
+            return mCancelled;
+        }
 
-            if (!isCancelled() && getAttachedImageView() != null) {
-                bitmap = processBitmap(params[0]);
+        /**
+         * Cancels the work, removing it from the executor's queue if it hasn't started yet.
+         */
+        public void cancel() {
+            if (!mCancelled) {
+                mLoadsCancelled.increment();
+            }
+            mCancelled = true;
+            if (mInFlight.get(key) == this) {
+                mInFlight.remove(key);
+            }
+            if (mExecutor != null) {
+                mExecutor.cancel(this);
             }
+            mParkedWork.remove(this);
+            abortDecode();
+        }
 
+        /**
+         * Registers a decode about to start on the decode thread.
+         *
+         * @return False if the task has already been cancelled, in which case the decode
+         *         shouldn't start.
+         */
+        boolean beginDecode(DescriptorStream in, BitmapFactory.Options options) {
+            synchronized (mDecodeLock) {
+                if (mCancelled) {
+                    mDecodeAborted = true;
+                    return false;
+                }
+                mDecodeStream = in;
+                mDecodeOptions = options;
+                return true;
+            }
+        }
 
-            if (bitmap != null && mImageCache != null) {
-                mImageCache.addBitmapToCache(dataString, bitmap);
+        /**
+         * Unregisters the decode once it has returned.
+         *
+         * @return True if the decode was aborted, and its result can't be trusted.
+         */
+        boolean endDecode() {
+            synchronized (mDecodeLock) {
+                mDecodeStream = null;
+                mDecodeOptions = null;
+                return mDecodeAborted;
             }
+        }
 
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - finished work");
+        boolean wasDecodeAborted() {
+            synchronized (mDecodeLock) {
+                return mDecodeAborted;
             }
+        }
 
-            return bitmap;
+        /**
+         * Stops a decode in progress: the decoder is asked to give up, and the stream it reads
+         * is cancelled, which ends the decode with a read error on platforms where the decoder
+         * ignores the request. The decode thread is then free for the next load, and closes the
+         * descriptor itself; closing it here could pull it from under a read in progress.
+         */
+        private void abortDecode() {
+            synchronized (mDecodeLock) {
+                if (mDecodeOptions == null) {
+                    return;
+                }
+                mDecodeAborted = true;
+                mDecodeOptions.requestCancelDecode();
+                mDecodeStream.cancel();
+            }
         }
 
         /**
-         * Once the image is processed, associates it to the imageView
+         * A load a view is still waiting for is never dropped, or the view would keep showing
+         * its placeholder until it's bound again.
          */
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled()) {
-                bitmap = null;
+        protected boolean isDroppable() {
+            return !hasAttachedImageView();
+        }
+
+        @Override
+        protected void onDropped() {
+            mLoadsDropped.increment();
+            mCancelled = true;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mInFlight.get(key) == BitmapWorkerTask.this) {
+                        mInFlight.remove(key);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Background processing. Returns the decoded bitmap, with a display reference taken for
+         * the views waiting for it, or null with mAtlasDrawable set if the image was copied into
+         * the thumbnail atlas.
+         */
+        private Bitmap doInBackground() {
+            Bitmap bitmap = null;
+
+            // Try the disk cache before doing the full decode
+            if (mImageCache != null && !isCancelled() && isWanted()) {
+                bitmap = mImageCache.getBitmapFromDiskCache(key);
             }
 
-            final ImageView imageView = getAttachedImageView();
-            if (bitmap != null && imageView != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "onPostExecute - setting bitmap");
+            if (bitmap == null && !isCancelled() && isWanted()) {
+                final long start = SystemClock.uptimeMillis();
+                mCurrentTask.set(this);
+                try {
+                    bitmap = processBitmap(data);
+                } finally {
+                    mCurrentTask.set(null);
+                }
+                final long elapsed = SystemClock.uptimeMillis() - start;
+                if (wasDecodeAborted()) {
+                    // Cancelled part way: nothing was kept, and the time spent was for nothing
+                    mLoadsAborted.increment();
+                    mWastedDecodeTime.add(elapsed);
+                    return null;
+                }
+                if (bitmap != null) {
+                    recordDecodeTime(elapsed);
+                    // Images from the disk cache were transformed before they were stored
+                    bitmap = applyTransforms(bitmap);
                 }
-                setImageBitmap(imageView, bitmap);
             }
+
+
+            if (bitmap == null) {
+                return null;
+            }
+            if (mImageCache != null) {
+                final long start = System.nanoTime();
+                try {
+                    final ThumbnailAtlas.AtlasDrawable atlased =
+                            mImageCache.addToThumbnailAtlas(key, bitmap);
+                    if (atlased != null) {
+                        // The atlas holds a copy, so the bitmap can be decoded into again
+                        mImageCache.getBitmapPool().put(bitmap);
+                        mAtlasDrawable = atlased;
+                        return null;
+                    }
+                    // Referenced before it's cached, so it can't be evicted into the pool and
+                    // decoded over before the views waiting for it show it
+                    mImageCache.retainBitmap(bitmap);
+                    mImageCache.addBitmapToCache(key, bitmap);
+                } finally {
+                    mCacheTime.record((System.nanoTime() - start) / 1000);
+                }
+            }
+            return bitmap;
         }
 
-        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-        @Override
-        protected void onCancelled(Bitmap bitmap) {
-            super.onCancelled(bitmap);
-            synchronized (mPauseWorkLock) {
-                mPauseWorkLock.notifyAll();
+        /**
+         * Once the image is processed, associates it to every view still waiting for it
+         */
+        private void onPostExecute(Bitmap bitmap) {
+            if (mInFlight.get(key) == this) {
+                mInFlight.remove(key);
+            }
+
+            final ThumbnailAtlas.AtlasDrawable drawable = mAtlasDrawable;
+            if (bitmap == null && drawable == null) {
+                return;
+            }
+            // A cancelled task shows nothing, but still gives back its display reference
+            final ArrayList<ImageView> imageViews = isCancelled()
+                    ? new ArrayList<ImageView>(0) : getAttachedImageViews();
+            for (int i = 0; i < imageViews.size(); i++) {
+                if (bitmap != null && i > 0 && mImageCache != null) {
+                    // The reference taken in doInBackground() goes to the first view
+                    mImageCache.retainBitmap(bitmap);
+                }
+                // Each view gets its own drawable, sharing the image
+                showImage(imageViews.get(i), bitmap, drawable == null || i == 0 ? drawable
+                        : drawable.getConstantState().newDrawable(mResources), true);
+            }
+            if (bitmap != null && imageViews.isEmpty() && mImageCache != null) {
+                mImageCache.releaseBitmap(bitmap);
+            }
+            if (drawable != null && imageViews.isEmpty()) {
+                drawable.release();
+            }
+            mLoadsDelivered.add(imageViews.size());
+            if (!imageViews.isEmpty()) {
+                mLoadTime.record(SystemClock.uptimeMillis() - mWaitingSinceMillis);
             }
         }
 
-        private ImageView getAttachedImageView() {
-            final ImageView imageView = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+        private boolean isWanted() {
+            return mPrefetch || hasAttachedImageView();
+        }
 
-            if (this == bitmapWorkerTask) {
-                return imageView;
+        private boolean hasAttachedImageView() {
+            synchronized (mWaiters) {
+                for (int i = 0; i < mWaiters.size(); i++) {
+                    if (this == getBitmapWorkerTask(mWaiters.get(i).get())) {
+                        return true;
+                    }
+                }
             }
+            return false;
+        }
 
-            return null;
+        private ArrayList<ImageView> getAttachedImageViews() {
+            final ArrayList<ImageView> imageViews = new ArrayList<ImageView>(1);
+            synchronized (mWaiters) {
+                for (int i = 0; i < mWaiters.size(); i++) {
+                    final ImageView imageView = mWaiters.get(i).get();
+                    // Skip views that have since been rebound to something else
+                    if (this == getBitmapWorkerTask(imageView)) {
+                        imageViews.add(imageView);
+                    }
+                }
+                mWaiters.clear();
+            }
+            return imageViews;
         }
     }
 
 
-    private static class AsyncDrawable extends BitmapDrawable {
+    private void recordDecodeTime(long millis) {
+        final float average = mAverageDecodeMillis;
+        mAverageDecodeMillis = average == 0 ? millis
+                : average + DECODE_TIME_SMOOTHING * (millis - average);
+    }
+
+
+    /**
+     * Shows the placeholder or preview while a load is in progress, and remembers the load.
+     */
+    private static class AsyncDrawable extends LayerDrawable {
         private final WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
 
-        public AsyncDrawable(Resources res, Bitmap bitmap, BitmapWorkerTask bitmapWorkerTask) {
-            super(res, bitmap);
+        // A preview bitmap from the cache, holding a display reference until it's released
+        private Bitmap mPreviewBitmap;
+
+        // The placeholder shown, if it isn't a preview
+        private final Bitmap mPlaceholder;
+
+        // The view's FadeInDrawable, kept to show the result with once the load is done. Only
+        // a reference: as a layer it would lose its callback when this drawable is replaced.
+        private FadeInDrawable mFadeInDrawable;
+
+        public AsyncDrawable(Drawable drawable, Bitmap previewBitmap, Bitmap placeholder,
+                BitmapWorkerTask bitmapWorkerTask) {
+            super(new Drawable[] {drawable});
+            mPreviewBitmap = previewBitmap;
+            mPlaceholder = placeholder;
             bitmapWorkerTaskReference =
                 new WeakReference<BitmapWorkerTask>(bitmapWorkerTask);
         }
@@ -251,31 +1141,133 @@ public abstract class ImageLoader {
         public BitmapWorkerTask getBitmapWorkerTask() {
             return bitmapWorkerTaskReference.get();
         }
+
+        /**
+         * Returns the preview bitmap's display reference to the cache, or the preview's atlas
+         * cell, once the drawable is being replaced.
+         */
+        void releasePreview(ImageCache imageCache) {
+            if (mPreviewBitmap != null && imageCache != null) {
+                imageCache.releaseBitmap(mPreviewBitmap);
+            }
+            mPreviewBitmap = null;
+            final Drawable preview = getDrawable(0);
+            if (preview instanceof ThumbnailAtlas.AtlasDrawable) {
+                ((ThumbnailAtlas.AtlasDrawable) preview).release();
+            }
+        }
     }
 
 
-    private void setImageBitmap(ImageView imageView, Bitmap bitmap) {
-        if (mFadeInBitmap) {
-            // Transition drawable to fade from loading bitmap to final bitmap
-            final TransitionDrawable td =
-                    new TransitionDrawable(new Drawable[] {
-                            new ColorDrawable(android.R.color.transparent),
-                            new BitmapDrawable(mResources, bitmap)
-                    });
-            imageView.setBackgroundDrawable(imageView.getDrawable());
-            imageView.setImageDrawable(td);
-            td.startTransition(FADE_IN_TIME);
+    /**
+     * Shows a bitmap, or a drawable if {@code drawable} isn't null. The image goes into the
+     * view's own {@link FadeInDrawable}, which is reused from bind to bind and takes over the
+     * bitmap's display reference, and is faded in if {@code fadeIn} is true and fade-in is
+     * enabled.
+     */
+    private void showImage(ImageView imageView, Bitmap bitmap, Drawable drawable,
+            boolean fadeIn) {
+        releasePreview(imageView);
+        FadeInDrawable fadeInDrawable = getFadeInDrawable(imageView);
+        if (fadeInDrawable == null) {
+            fadeInDrawable = new FadeInDrawable(mResources, mImageCache);
+        }
+        final int oldWidth = fadeInDrawable.getIntrinsicWidth();
+        final int oldHeight = fadeInDrawable.getIntrinsicHeight();
+        if (drawable != null) {
+            fadeInDrawable.setDrawable(drawable);
         } else {
-            imageView.setImageBitmap(bitmap);
+            fadeInDrawable.setBitmap(bitmap);
+        }
+        if (fadeIn && mFadeInBitmap) {
+            fadeInDrawable.startFade(FADE_IN_TIME);
+        }
+
+        if (imageView.getDrawable() != fadeInDrawable) {
+            imageView.setImageDrawable(fadeInDrawable);
+        } else if (oldWidth != fadeInDrawable.getIntrinsicWidth()
+                || oldHeight != fadeInDrawable.getIntrinsicHeight()) {
+            // The view only measures and scales a drawable when it is set, and ignores setting
+            // the one it already has
+            imageView.setImageDrawable(null);
+            imageView.setImageDrawable(fadeInDrawable);
+        }
+    }
+
+    /**
+     * Drops the view's reference to the image it last showed, so it can be freed, or pooled,
+     * while the view waits for its next image.
+     */
+    private void releaseImage(ImageView imageView) {
+        releasePreview(imageView);
+        final FadeInDrawable fadeInDrawable = getFadeInDrawable(imageView);
+        if (fadeInDrawable != null) {
+            fadeInDrawable.setBitmap(null);
+        }
+    }
+
+    /**
+     * Returns the view's FadeInDrawable: its drawable, or the one kept by the AsyncDrawable it
+     * shows while loading, or null if it has none yet.
+     */
+    private static FadeInDrawable getFadeInDrawable(ImageView imageView) {
+        final Drawable drawable = imageView.getDrawable();
+        if (drawable instanceof FadeInDrawable) {
+            return (FadeInDrawable) drawable;
+        }
+        if (drawable instanceof AsyncDrawable) {
+            return ((AsyncDrawable) drawable).mFadeInDrawable;
         }
+        return null;
     }
 
+    private static ThumbnailAtlas.AtlasDrawable getReusableAtlasDrawable(ImageView imageView) {
+        final FadeInDrawable fadeInDrawable = getFadeInDrawable(imageView);
+        return fadeInDrawable != null ? fadeInDrawable.getReusableAtlasDrawable() : null;
+    }
 
+    private void releasePreview(ImageView imageView) {
+        final Drawable drawable = imageView.getDrawable();
+        if (drawable instanceof AsyncDrawable) {
+            ((AsyncDrawable) drawable).releasePreview(mImageCache);
+        }
+    }
+
+
+    /**
+     * Pauses or resumes loading, e.g. while a list is flinging. While paused, new loads are
+     * parked rather than run, and no decode thread is held. On resume, parked loads whose views
+     * have since been recycled are dropped and the rest run newest first, so the rows visible
+     * where scrolling stopped are decoded before anything else. Must be called on the UI thread.
+     */
     public void setPauseWork(boolean pauseWork) {
-        synchronized (mPauseWorkLock) {
-            mPauseWork = pauseWork;
-            if (!mPauseWork) {
-                mPauseWorkLock.notifyAll();
+        if (mPauseWork == pauseWork) {
+            return;
+        }
+        mPauseWork = pauseWork;
+        if (pauseWork) {
+            mPauseStartMillis = SystemClock.uptimeMillis();
+        } else {
+            mPauseTime.record(SystemClock.uptimeMillis() - mPauseStartMillis);
+            resumeParkedWork();
+        }
+    }
+
+    private void resumeParkedWork() {
+        // Submitting oldest first gives the newest loads the highest sequence, so the executor
+        // runs them first
+        final ArrayList<BitmapWorkerTask> parked = new ArrayList<BitmapWorkerTask>(mParkedWork);
+        mParkedWork.clear();
+        for (int i = 0; i < parked.size(); i++) {
+            final BitmapWorkerTask task = parked.get(i);
+            if (task.isCancelled()) {
+                continue;
+            }
+            if (task.isWanted()) {
+                getExecutor().execute(task, task.mRequestedPriority);
+            } else {
+                // Every view that asked for it has been rebound while paused
+                task.cancel();
             }
         }
     }
@@ -283,48 +1275,322 @@ public abstract class ImageLoader {
 
     public static Bitmap decodeSampledBitmapFromDescriptor(
             FileDescriptor fileDescriptor, int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Decodes a bitmap scaled down to roughly the requested size, reusing a bitmap from
+     * {@code bitmapPool} for the pixels when one fits. The image is read from the descriptor's
+     * current position to its end.
+     *
+     * @param bitmapPool The pool to take a bitmap from, or null to always allocate.
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor,
+            int reqWidth, int reqHeight, BitmapPool bitmapPool) {
+        return decodeSampledBitmap(DescriptorStream.open(fileDescriptor),
+                reqWidth, reqHeight, bitmapPool, false, new BitmapFactory.Options(), null);
+    }
 
-        // First decode with inJustDecodeBounds=true to check dimensions
+    /**
+     * Decodes the image held by {@code afd}, honouring its start offset and length, scaled down
+     * to roughly the requested size. The descriptor is read once: the header is sniffed from a
+     * buffered, marked stream which is then reset for the full decode.
+     *
+     * @param bitmapPool The pool to take a bitmap from, or null to always allocate.
+     * @param timings If not null, receives how long each decode phase took.
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(AssetFileDescriptor afd,
+            int reqWidth, int reqHeight, BitmapPool bitmapPool, DecodeTimings timings) {
+        return decodeSampledBitmap(DescriptorStream.open(afd),
+                reqWidth, reqHeight, bitmapPool, false, new BitmapFactory.Options(), timings);
+    }
+
+    /**
+     * Like {@link #decodeSampledBitmapFromDescriptor(AssetFileDescriptor, int, int, BitmapPool,
+     * DecodeTimings)}, but if {@code exactSize} is true the result is exactly
+     * {@code reqWidth x reqHeight} (or smaller, if the source is) rather than up to twice the
+     * requested pixels, and opaque JPEGs are decoded as RGB_565. That cuts the memory of a
+     * typical thumbnail to a quarter or less.
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(AssetFileDescriptor afd,
+            int reqWidth, int reqHeight, BitmapPool bitmapPool, boolean exactSize,
+            DecodeTimings timings) {
+        return decodeSampledBitmap(DescriptorStream.open(afd), reqWidth, reqHeight,
+                bitmapPool, exactSize, new BitmapFactory.Options(), timings);
+    }
+
+    /**
+     * Decodes using this loader's bitmap pool and decode mode, see
+     * {@link #setExactSizeDecoding(boolean)}. Called from {@link #processBitmap}, the decode
+     * is aborted as soon as the load is cancelled, and null is returned. {@code afd} is left
+     * open for the caller to close.
+     */
+    public Bitmap decodeBitmap(AssetFileDescriptor afd, int reqWidth, int reqHeight) {
+        final BitmapWorkerTask task = mCurrentTask.get();
         final BitmapFactory.Options options = new BitmapFactory.Options();
+        final DescriptorStream in = DescriptorStream.open(afd);
+        if (task != null && !task.beginDecode(in, options)) {
+            return null;
+        }
+
+        final DecodeTimings timings = new DecodeTimings();
+        final BitmapPool bitmapPool = getBitmapPool();
+        Bitmap bitmap = null;
+        boolean aborted = false;
+        try {
+            bitmap = decodeSampledBitmap(in, reqWidth, reqHeight, bitmapPool,
+                    mExactSizeDecoding, options, timings);
+        } finally {
+            aborted = task != null && task.endDecode();
+        }
+        if (aborted) {
+            // A decode cut short may have returned a partly decoded image, and its timings
+            // would only skew the figures
+            if (bitmap != null && bitmapPool != null) {
+                bitmapPool.put(bitmap);
+            }
+            return null;
+        }
+        mHeaderTime.record(timings.headerMicros);
+        mDecodeTime.record(timings.decodeMicros);
+        return bitmap;
+    }
+
+    /**
+     * Opens an image for {@link #decodeBitmap}, recording how long the provider took to hand
+     * it over. Call from {@link #processBitmap}.
+     */
+    public AssetFileDescriptor openImageDescriptor(ContentResolver contentResolver, Uri uri)
+            throws FileNotFoundException {
+        final long start = System.nanoTime();
+        try {
+            return contentResolver.openAssetFileDescriptor(uri, "r");
+        } finally {
+            mOpenTime.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Decodes with a fresh {@code options}, which the caller may use to cancel the decode.
+     */
+    private static Bitmap decodeSampledBitmap(DescriptorStream in, int reqWidth, int reqHeight,
+            BitmapPool bitmapPool, boolean exactSize, BitmapFactory.Options options,
+            DecodeTimings timings) {
+        if (!probeImage(in, options, timings)) {
+            // Not an image the platform can decode
+            return null;
+        }
+        return decodeImage(in, options, reqWidth, reqHeight, bitmapPool, exactSize, timings);
+    }
+
+    /**
+     * The probe stage: reads the image header from {@code in} for the image's dimensions, which
+     * are left in {@code options.outWidth} and {@code options.outHeight}.
+     *
+     * @return False if it isn't an image the platform can decode.
+     */
+    static boolean probeImage(DescriptorStream in, BitmapFactory.Options options,
+            DecodeTimings timings) {
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        final long start = System.nanoTime();
+        BitmapFactory.decodeStream(in, null, options);
+        if (timings != null) {
+            timings.headerMicros = (System.nanoTime() - start) / 1000;
+        }
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+    /**
+     * The decode stage: rewinds {@code in} and decodes the image {@link #probeImage} read the
+     * dimensions of into {@code options}, scaled down for {@code reqWidth} by {@code reqHeight},
+     * or to exactly that size, cropped, if {@code exactSize} is true. Decodes into a bitmap
+     * from {@code bitmapPool}, if it has one that fits.
+     *
+     * @return The decoded image, or null if it couldn't be decoded or the stream was
+     *         cancelled.
+     */
+    static Bitmap decodeImage(DescriptorStream in, BitmapFactory.Options options,
+            int reqWidth, int reqHeight, BitmapPool bitmapPool, boolean exactSize,
+            DecodeTimings timings) {
+        // The decode overwrites these with the decoded dimensions
+        final int sourceWidth = options.outWidth;
+        final int sourceHeight = options.outHeight;
+
+        if (exactSize) {
+            addExactSizeOptions(options, reqWidth, reqHeight);
+        } else {
+            // Calculate inSampleSize
+            options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        }
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        if (bitmapPool != null) {
+            addInBitmapOptions(options, bitmapPool);
+        }
+        final long start = System.nanoTime();
+        try {
+            DescriptorStream decodeStream = in.rewind();
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeStream(decodeStream, null, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap didn't fit after all, fall back to a fresh allocation
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                options.inBitmap = null;
+                decodeStream = decodeStream.rewind();
+                bitmap = BitmapFactory.decodeStream(decodeStream, null, options);
+            }
+            if (exactSize && bitmap != null) {
+                // Never larger than the source: exact size decoding doesn't scale up
+                bitmap = cropToSize(bitmap, Math.min(reqWidth, sourceWidth),
+                        Math.min(reqHeight, sourceHeight), bitmapPool);
+            }
+            return bitmap;
+        } catch (IOException e) {
+            // A cancelled decode's stream fails every read
+            if (!options.mCancel && !in.isCancelled()) {
+                Log.e(TAG, "decodeImage - unable to rewind image stream: " + e);
+            }
+            return null;
+        } finally {
+            if (timings != null) {
+                timings.decodeMicros = (System.nanoTime() - start) / 1000;
+            }
+        }
     }
 
+    /**
+     * How long the phases of a decode took.
+     */
+    public static class DecodeTimings {
+        /** Time spent reading the image header to find its dimensions. */
+        public long headerMicros;
+        /** Time spent decoding the pixels. */
+        public long decodeMicros;
 
-    public static int calculateInSampleSize(BitmapFactory.Options options,
-            int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
+        @Override
+        public String toString() {
+            return "DecodeTimings[header=" + headerMicros + "us,decode=" + decodeMicros + "us]";
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void addInBitmapOptions(BitmapFactory.Options options, BitmapPool bitmapPool) {
+        if (!BitmapPool.isSupported()) {
+            return;
+        }
 
-        if (height > reqHeight || width > reqWidth) {
+        final boolean scaled = options.inScaled && options.inDensity > 0
+                && options.inTargetDensity > 0 && options.inDensity != options.inTargetDensity;
 
-            // Calculate ratios of height and width to requested height and width
-            final int heightRatio = Math.round((float) height / (float) reqHeight);
-            final int widthRatio = Math.round((float) width / (float) reqWidth);
+        // Before KitKat the decoder can only reuse a bitmap when it isn't sampling or scaling
+        if (!Utils.hasKitKat() && (options.inSampleSize != 1 || scaled)) {
+            return;
+        }
 
+        // inBitmap only works with mutable bitmaps, and the result should be poolable later
+        options.inMutable = true;
 
-            inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
+        final int sampleSize = options.inSampleSize;
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        if (scaled) {
+            final float scale = (float) options.inTargetDensity / options.inDensity;
+            width = (int) (width * scale + 0.5f);
+            height = (int) (height * scale + 0.5f);
+        }
+        final Bitmap reusable = bitmapPool.get(width, height, options.inPreferredConfig);
+        if (reusable != null) {
+            options.inBitmap = reusable;
+        }
+    }
 
 
+    /**
+     * Sets up {@code options} to decode an image whose bounds are already known at exactly the
+     * requested size: a power-of-two sample size that keeps the image at least as large as
+     * requested, then density scaling down to the requested size for whichever side leaves the
+     * other side covering the request. Never scales up.
+     */
+    private static void addExactSizeOptions(BitmapFactory.Options options,
+            int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= reqWidth
+                && options.outHeight / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        options.inSampleSize = sampleSize;
+
+        final int sampledWidth = options.outWidth / sampleSize;
+        final int sampledHeight = options.outHeight / sampleSize;
+        final float widthScale = (float) reqWidth / sampledWidth;
+        final float heightScale = (float) reqHeight / sampledHeight;
+        if (widthScale < 1f && heightScale < 1f) {
+            options.inScaled = true;
+            if (widthScale >= heightScale) {
+                options.inDensity = sampledWidth;
+                options.inTargetDensity = reqWidth;
+            } else {
+                options.inDensity = sampledHeight;
+                options.inTargetDensity = reqHeight;
+            }
+        }
 
-            final float totalPixels = width * height;
+        // JPEG has no alpha channel, so half the bytes per pixel lose nothing but some colour
+        // depth, which a dithered thumbnail doesn't show
+        if ("image/jpeg".equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inDither = true;
+        }
+    }
 
-            // Anything more than 2x the requested pixels we'll sample down further
-            final float totalReqPixelsCap = reqWidth * reqHeight * 2;
+    /**
+     * Center-crops a decoded image to exactly the target size, returning it to the pool. The
+     * crop is drawn into a mutable bitmap from the pool, so it can be pooled again in turn. The
+     * decoder's density scaling rounds, and can leave the image a pixel short of the target, in
+     * which case it is scaled up to cover it.
+     */
+    private static Bitmap cropToSize(Bitmap bitmap, int targetWidth, int targetHeight,
+            BitmapPool bitmapPool) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width == targetWidth && height == targetHeight) {
+            return bitmap;
+        }
 
-            while (totalPixels / (inSampleSize * inSampleSize) > totalReqPixelsCap) {
-                inSampleSize++;
-            }
+        final Bitmap.Config config =
+                bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap cropped = bitmapPool != null
+                ? bitmapPool.obtain(targetWidth, targetHeight, config)
+                : Bitmap.createBitmap(targetWidth, targetHeight, config);
+        // A pooled bitmap still holds its last image, which would show through transparency
+        cropped.eraseColor(0);
+
+        final float scale =
+                Math.max((float) targetWidth / width, (float) targetHeight / height);
+        final Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((targetWidth - width * scale) / 2f,
+                (targetHeight - height * scale) / 2f);
+        new Canvas(cropped).drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+
+        if (bitmapPool != null) {
+            bitmapPool.put(bitmap);
         }
-        return inSampleSize;
+        return cropped;
+    }
+
+
+    /**
+     * Returns the sample size for decoding the image whose bounds are in {@code options}, see
+     * {@link ImageSizes#calculateInSampleSize(int, int, int, int)}.
+     */
+    public static int calculateInSampleSize(BitmapFactory.Options options,
+            int reqWidth, int reqHeight) {
+        return ImageSizes.calculateInSampleSize(
+                options.outWidth, options.outHeight, reqWidth, reqHeight);
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * Prefetches images for the rows just past the edge of a scrolling list, in the direction the
+ * list is moving. The number of rows prefetched grows with scroll speed but is capped by how many
+ * images the loader can actually decode in time, measured from its recent decode times. When the
+ * scroll direction reverses, the outstanding prefetches are withdrawn.
+ *
+ * All methods must be called on the UI thread, typically from an
+ * {@link android.widget.AbsListView.OnScrollListener}.
+ */
+public class ImagePrefetcher {
+    // How far ahead, in time, the prefetch window tries to cover
+    private static final long LOOKAHEAD_MILLIS = 500;
+
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 24;
+
+    // Weight of the newest sample in the moving average of scroll velocity
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
+    /**
+     * Provides the keys and data to hand to {@link ImageLoader#prefetch(ImageKey, Object)} for a
+     * list position.
+     */
+    public interface DataSource {
+        /**
+         * Returns the cache key of the image for the row at {@code position}, or null if it has
+         * no image.
+         */
+        ImageKey getImageKey(int position);
+
+        /**
+         * Returns the image data for the row at {@code position}, or null if it has no image.
+         */
+        Object getImageData(int position);
+
+        int getCount();
+    }
+
+    private final ImageLoader mImageLoader;
+    private final DataSource mDataSource;
+
+    // Outstanding prefetches, by list position
+    private final SparseArray<ImageKey> mPrefetched = new SparseArray<ImageKey>();
+
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    private int mDirection;
+    private float mRowsPerSecond;
+
+    public ImagePrefetcher(ImageLoader imageLoader, DataSource dataSource) {
+        mImageLoader = imageLoader;
+        mDataSource = dataSource;
+    }
+
+    /**
+     * Call from {@link android.widget.AbsListView.OnScrollListener#onScroll}.
+     */
+    public void onScroll(int firstVisibleItem, int visibleItemCount) {
+        final long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible < 0) {
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+            return;
+        }
+        if (firstVisibleItem == mLastFirstVisible) {
+            return;
+        }
+
+        final int moved = firstVisibleItem - mLastFirstVisible;
+        final int direction = moved > 0 ? 1 : -1;
+        final long elapsed = Math.max(1, now - mLastScrollTime);
+        final float rowsPerSecond = Math.abs(moved) * 1000f / elapsed;
+        mLastFirstVisible = firstVisibleItem;
+        mLastScrollTime = now;
+
+        if (direction != mDirection) {
+            // Everything queued for the old direction is now behind us
+            cancelAll();
+            mDirection = direction;
+            mRowsPerSecond = rowsPerSecond;
+        } else {
+            mRowsPerSecond += VELOCITY_SMOOTHING * (rowsPerSecond - mRowsPerSecond);
+        }
+
+        final int window = getWindowSize();
+        final int start;
+        final int end;
+        if (direction > 0) {
+            start = firstVisibleItem + visibleItemCount;
+            end = Math.min(start + window, mDataSource.getCount()) - 1;
+        } else {
+            end = firstVisibleItem - 1;
+            start = Math.max(0, end - window + 1);
+        }
+
+        cancelOutside(start, end);
+        for (int position = start; position <= end; position++) {
+            if (mPrefetched.indexOfKey(position) < 0) {
+                final Object data = mDataSource.getImageData(position);
+                final ImageKey key = data != null ? mDataSource.getImageKey(position) : null;
+                if (key != null) {
+                    mImageLoader.prefetch(key, data);
+                    mPrefetched.put(position, key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Withdraws all outstanding prefetches, e.g. when the list's data changes.
+     */
+    public void cancelAll() {
+        for (int i = 0; i < mPrefetched.size(); i++) {
+            mImageLoader.cancelPrefetch(mPrefetched.valueAt(i));
+        }
+        mPrefetched.clear();
+    }
+
+    /**
+     * Forgets the scroll history, e.g. after the list's data changes.
+     */
+    public void reset() {
+        cancelAll();
+        mLastFirstVisible = -1;
+        mDirection = 0;
+        mRowsPerSecond = 0;
+    }
+
+    /**
+     * Returns how many rows ahead to prefetch: enough to cover the rows that will scroll into
+     * view within the lookahead time, but no more than the decode threads can get through in
+     * that time.
+     */
+    private int getWindowSize() {
+        int window = (int) Math.ceil(mRowsPerSecond * LOOKAHEAD_MILLIS / 1000f);
+
+        final float decodeMillis = mImageLoader.getAverageDecodeTime();
+        if (decodeMillis > 0) {
+            final int decodeCapacity = (int) (LOOKAHEAD_MILLIS / decodeMillis)
+                    * mImageLoader.getDecodeThreadCount();
+            window = Math.min(window, decodeCapacity);
+        }
+        return Math.max(MIN_WINDOW, Math.min(window, MAX_WINDOW));
+    }
+
+    /**
+     * Withdraws prefetches that have fallen outside the window. For rows that have scrolled into
+     * view this only drops the prefetch's claim; the load carries on for the bound view.
+     */
+    private void cancelOutside(int start, int end) {
+        for (int i = mPrefetched.size() - 1; i >= 0; i--) {
+            final int position = mPrefetched.keyAt(i);
+            if (position < start || position > end) {
+                mImageLoader.cancelPrefetch(mPrefetched.valueAt(i));
+                mPrefetched.removeAt(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Word-prefix searches of a {@link ContactSearchIndex} as the user types, reusing the results of
+ * recent queries. A small LRU maps recent queries to their result rows:
+ * <ul>
+ * <li>A query that was searched for recently, as after a backspace, is answered from it.</li>
+ * <li>A query that extends a recent one, as after typing another character, only needs that
+ * query's rows filtered, as its result is a subset of them.</li>
+ * <li>Anything else is searched for in the whole index.</li>
+ * </ul>
+ * Queries are compared in their normalized form, see {@link ContactSearchIndex#normalizeQuery}.
+ * Results are shared with the cache, so callers must not change them. Not thread safe; use it
+ * from one thread. Kept free of Android types so it can be benchmarked on a plain JVM.
+ */
+public class IncrementalSearch {
+    // Up to this many recent results are kept, holding up to this many rows in total
+    private static final int MAX_CACHED_QUERIES = 8;
+    private static final int MAX_CACHED_ROWS = 32 * 1024;
+
+    private final ContactSearchIndex mIndex;
+
+    // Results by normalized query, least recently used first
+    private final LinkedHashMap<String, int[]> mResults =
+            new LinkedHashMap<String, int[]>(0, 0.75f, true);
+    private int mCachedRows;
+
+    private int mCacheHits;
+    private int mRefinements;
+    private int mFullSearches;
+
+    public IncrementalSearch(ContactSearchIndex index) {
+        mIndex = index;
+    }
+
+    public ContactSearchIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Returns the rows of the contacts with a word in their name starting with each word of
+     * {@code query}, in ascending order, like {@link ContactSearchIndex#findWordPrefixes}.
+     */
+    public int[] search(String query) {
+        final String key = ContactSearchIndex.normalizeQuery(query);
+        int[] rows = mResults.get(key);
+        if (rows != null) {
+            mCacheHits++;
+            return rows;
+        }
+
+        // The longest recent query this one extends has the fewest rows to filter
+        String longestPrefix = null;
+        for (String cached : mResults.keySet()) {
+            if (key.startsWith(cached)
+                    && (longestPrefix == null || cached.length() > longestPrefix.length())) {
+                longestPrefix = cached;
+            }
+        }
+        if (longestPrefix != null) {
+            rows = mIndex.filterWordPrefixes(mResults.get(longestPrefix), key);
+            mRefinements++;
+        } else {
+            rows = mIndex.findWordPrefixes(key);
+            mFullSearches++;
+        }
+
+        mResults.put(key, rows);
+        mCachedRows += rows.length;
+        trim();
+        return rows;
+    }
+
+    /**
+     * Forgets the recent results.
+     */
+    public void clear() {
+        mResults.clear();
+        mCachedRows = 0;
+    }
+
+    public int cacheHitCount() {
+        return mCacheHits;
+    }
+
+    public int refinementCount() {
+        return mRefinements;
+    }
+
+    public int fullSearchCount() {
+        return mFullSearches;
+    }
+
+    /**
+     * Drops the least recently used results until the cache is within its bounds, always
+     * keeping the most recent one.
+     */
+    private void trim() {
+        final Iterator<Map.Entry<String, int[]>> iterator = mResults.entrySet().iterator();
+        while (mResults.size() > 1 && (mResults.size() > MAX_CACHED_QUERIES
+                || mCachedRows > MAX_CACHED_ROWS)) {
+            mCachedRows -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IncrementalSearch[cached=%d,hits=%d,refinements=%d,full=%d]",
+                mResults.size(), mCacheHits, mRefinements, mFullSearches);
+    }
+}
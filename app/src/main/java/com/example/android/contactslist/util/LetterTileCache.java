@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import com.example.android.contactslist.R;
+
+import java.util.HashSet;
+
+/**
+ * Renders letter tiles, a contact's initial on a colour picked from their name, to stand in for
+ * contacts without a photo. Tiles depend only on the letter, the colour and the size, and each
+ * letter only comes in a couple of colours, so a whole contact list shares a few dozen
+ * bitmaps. They are rendered on a background thread and kept in a small cache that is looked
+ * up without allocating.
+ *
+ * All methods must be called on the UI thread.
+ */
+public class LetterTileCache {
+    // How many of the colours each letter may get. The colours are spread across the letters, so
+    // neighbouring names still differ, while one alphabet only needs a few dozen tiles.
+    private static final int COLORS_PER_LETTER = 2;
+
+    // Enough for every letter of a 26 letter alphabet, and '#', in each of their colours
+    private static final int MAX_TILES = 64;
+
+    private static final float LETTER_TO_TILE_RATIO = 0.5f;
+
+    // Shown for names that don't start with a letter
+    private static final int DEFAULT_LETTER = '#';
+
+    /**
+     * Notified when tiles that were asked for but not ready have finished rendering, so the
+     * views that went without them can ask again.
+     */
+    public interface OnTilesRenderedListener {
+        void onTilesRendered();
+    }
+
+    private final int[] mColors;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PriorityExecutor mExecutor =
+            new PriorityExecutor("LetterTileCache", 1, MAX_TILES);
+
+    // A fixed-size cache searched linearly; with this few entries that's as fast as hashing and
+    // needs no boxed keys. Tiles are evicted in the order they were added.
+    private final long[] mKeys = new long[MAX_TILES];
+    private final Bitmap[] mTiles = new Bitmap[MAX_TILES];
+    private int mTileCount;
+    private int mNextEviction;
+
+    private final HashSet<Long> mPending = new HashSet<Long>();
+    private OnTilesRenderedListener mListener;
+
+    public LetterTileCache(Resources resources) {
+        final TypedArray colors = resources.obtainTypedArray(R.array.letter_tile_colors);
+        mColors = new int[colors.length()];
+        for (int i = 0; i < mColors.length; i++) {
+            mColors[i] = colors.getColor(i, 0);
+        }
+        colors.recycle();
+    }
+
+    public void setOnTilesRenderedListener(OnTilesRenderedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the tile for {@code displayName} at {@code size} pixels square, or null if it
+     * hasn't been rendered yet. In that case it is queued for rendering and the listener is told
+     * once it, and any other tiles queued with it, are ready.
+     */
+    public Bitmap getTile(String displayName, int size) {
+        final long key = getKey(displayName, size);
+        for (int i = 0; i < mTileCount; i++) {
+            if (mKeys[i] == key) {
+                return mTiles[i];
+            }
+        }
+        if (mPending.add(key)) {
+            mExecutor.execute(new RenderJob(key), PriorityExecutor.PRIORITY_NORMAL);
+        }
+        return null;
+    }
+
+    /**
+     * Stops rendering and drops the listener. The cache can't be used afterwards.
+     */
+    public void close() {
+        mListener = null;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Packs the letter, colour index and size into a key: the letter's code point in the low 24
+     * bits, the colour index in the next 8 and the size above them. The name picks one of the
+     * letter's colours.
+     */
+    private long getKey(String displayName, int size) {
+        int letter = DEFAULT_LETTER;
+        int variant = 0;
+        if (!TextUtils.isEmpty(displayName)) {
+            final int first = displayName.codePointAt(0);
+            if (Character.isLetter(first)) {
+                letter = Character.toUpperCase(first);
+            }
+            variant = (displayName.hashCode() & Integer.MAX_VALUE) % COLORS_PER_LETTER;
+        }
+        final int color = (letter * COLORS_PER_LETTER + variant) % mColors.length;
+        return ((long) size << 32) | ((long) color << 24) | letter;
+    }
+
+    private void putTile(long key, Bitmap tile) {
+        final int index;
+        if (mTileCount < MAX_TILES) {
+            index = mTileCount++;
+        } else {
+            // Evicted tiles may still be on screen, so they're left for the GC rather than
+            // recycled or pooled
+            index = mNextEviction;
+            mNextEviction = (mNextEviction + 1) % MAX_TILES;
+        }
+        mKeys[index] = key;
+        mTiles[index] = tile;
+    }
+
+    private void onRendered(long key, Bitmap tile) {
+        mPending.remove(key);
+        if (tile != null) {
+            putTile(key, tile);
+        }
+        // Batch the notifications while a burst of tiles is rendering
+        if (mPending.isEmpty() && mListener != null) {
+            mListener.onTilesRendered();
+        }
+    }
+
+    private Bitmap render(long key) {
+        final int size = (int) (key >>> 32);
+        final int color = mColors[(int) (key >>> 24) & 0xff];
+        final String letter = new String(Character.toChars((int) (key & 0xffffff)));
+
+        final Bitmap tile = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(tile);
+        canvas.drawColor(color);
+
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(0xffffffff);
+        paint.setTypeface(Typeface.create(Typeface.SANS_SERIF, Typeface.NORMAL));
+        paint.setTextAlign(Paint.Align.CENTER);
+        paint.setTextSize(size * LETTER_TO_TILE_RATIO);
+
+        // Center the glyph vertically on its ascent and descent
+        final float baseline = (size - paint.ascent() - paint.descent()) / 2f;
+        canvas.drawText(letter, size / 2f, baseline, paint);
+        return tile;
+    }
+
+    private class RenderJob extends PriorityExecutor.Job {
+        private final long mKey;
+
+        RenderJob(long key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap tile = render(mKey);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onRendered(mKey, tile);
+                }
+            });
+        }
+
+        @Override
+        protected void onDropped() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onRendered(mKey, null);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.util;
+
+/**
+ * An LRU cache keyed by primitive longs, so looking an entry up never boxes a key or allocates
+ * an entry. It behaves like the support library's LruCache: entries have a size given by
+ * {@link #sizeOf}, the least recently used entries are evicted once the total exceeds the
+ * maximum, and {@link #entryRemoved} runs outside the lock.
+ *
+ * Entries live in parallel arrays, linked into recency order by index, with an open-addressing
+ * table from key to entry. The arrays only grow, when an entry is added to a full cache.
+ *
+ * Kept free of Android types so it can be benchmarked on a plain JVM.
+ */
+public class LongLruCache<V> {
+    private static final int NONE = -1;
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private int mMaxSize;
+    private int mSize;
+    private int mCount;
+
+    // Per-entry state, indexed by slot
+    private long[] mKeys;
+    private Object[] mValues;
+    private int[] mEntrySizes;
+    private int[] mPrevious;
+    private int[] mNext;
+
+    // Least and most recently used slots, and a list of free slots chained through mNext
+    private int mHead = NONE;
+    private int mTail = NONE;
+    private int mFree = NONE;
+    private int mSlotsUsed;
+
+    // Slot + 1 for each key, by hash, with linear probing; 0 is empty. Kept at most half full.
+    private int[] mTable;
+    private int mTableShift;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    public LongLruCache(int maxSize) {
+        this(maxSize, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param maxSize The maximum total of the entries' sizes.
+     * @param initialCapacity The number of entries to make room for up front.
+     */
+    public LongLruCache(int maxSize, int initialCapacity) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        allocateSlots(Math.max(4, initialCapacity));
+        allocateTable(Math.max(4, initialCapacity));
+    }
+
+    /**
+     * Returns the value for {@code key} and marks it most recently used, or returns null.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long key) {
+        final int slot = find(key);
+        if (slot == NONE) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        if (slot != mTail) {
+            unlink(slot);
+            linkLast(slot);
+        }
+        return (V) mValues[slot];
+    }
+
+    /**
+     * Stores {@code value} for {@code key} as the most recently used entry, then evicts entries
+     * until the cache fits its maximum size.
+     *
+     * @return The value previously stored for the key, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        final int entrySize = safeSizeOf(key, value);
+        V previous = null;
+        synchronized (this) {
+            int slot = find(key);
+            if (slot != NONE) {
+                previous = (V) mValues[slot];
+                mSize -= mEntrySizes[slot];
+                unlink(slot);
+            } else {
+                slot = allocateSlot();
+                mKeys[slot] = key;
+                insertIntoTable(slot);
+                mCount++;
+            }
+            mValues[slot] = value;
+            mEntrySizes[slot] = entrySize;
+            mSize += entrySize;
+            linkLast(slot);
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(mMaxSize);
+        return previous;
+    }
+
+    /**
+     * Removes the entry for {@code key}.
+     *
+     * @return The removed value, or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        final V previous;
+        synchronized (this) {
+            final int slot = find(key);
+            if (slot == NONE) {
+                return null;
+            }
+            previous = (V) mValues[slot];
+            release(slot);
+        }
+        entryRemoved(false, key, previous, null);
+        return previous;
+    }
+
+    /**
+     * Evicts the least recently used entries until the total size is at most {@code maxSize}.
+     */
+    @SuppressWarnings("unchecked")
+    public void trimToSize(int maxSize) {
+        while (true) {
+            final long key;
+            final V value;
+            synchronized (this) {
+                if (mSize <= maxSize || mHead == NONE) {
+                    return;
+                }
+                final int slot = mHead;
+                key = mKeys[slot];
+                value = (V) mValues[slot];
+                release(slot);
+                mEvictionCount++;
+            }
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    /**
+     * Changes the maximum size, evicting entries if the cache no longer fits.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (this) {
+            mMaxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Returns the size of an entry, in the units of the maximum size. Defaults to 1, so the
+     * maximum size is a number of entries.
+     */
+    protected int sizeOf(long key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called, outside the lock, for entries that are evicted, removed or replaced.
+     *
+     * @param evicted True if the entry was evicted to make room.
+     * @param newValue The replacing value, or null if the entry was evicted or removed.
+     */
+    protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {}
+
+    public synchronized final int size() {
+        return mSize;
+    }
+
+    public synchronized final int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized final int count() {
+        return mCount;
+    }
+
+    public synchronized final int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized final int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized final int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "LongLruCache[maxSize=" + mMaxSize + ",count=" + mCount + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",hitRate=" + hitPercent + "%]";
+    }
+
+    private int safeSizeOf(long key, V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private int indexFor(long key) {
+        // Fibonacci hashing spreads sequential ids, like contact ids, across the table
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mTableShift);
+    }
+
+    private int find(long key) {
+        final int mask = mTable.length - 1;
+        for (int i = indexFor(key); ; i = (i + 1) & mask) {
+            final int entry = mTable[i];
+            if (entry == 0) {
+                return NONE;
+            }
+            if (mKeys[entry - 1] == key) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void insertIntoTable(int slot) {
+        if ((mCount + 1) * 2 > mTable.length) {
+            allocateTable(mTable.length);
+            for (int s = mHead; s != NONE; s = mNext[s]) {
+                placeInTable(s);
+            }
+        }
+        placeInTable(slot);
+    }
+
+    private void placeInTable(int slot) {
+        final int mask = mTable.length - 1;
+        int i = indexFor(mKeys[slot]);
+        while (mTable[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        mTable[i] = slot + 1;
+    }
+
+    /**
+     * Removes a slot from the table, shifting later entries of its probe run back so lookups
+     * never stop at the hole.
+     */
+    private void removeFromTable(int slot) {
+        final int mask = mTable.length - 1;
+        int hole = indexFor(mKeys[slot]);
+        while (mTable[hole] != slot + 1) {
+            hole = (hole + 1) & mask;
+        }
+        mTable[hole] = 0;
+        for (int i = (hole + 1) & mask; mTable[i] != 0; i = (i + 1) & mask) {
+            final int home = indexFor(mKeys[mTable[i] - 1]);
+            // Move the entry into the hole unless its home lies cyclically in (hole, i]
+            final boolean stays = hole <= i ? (hole < home && home <= i)
+                    : (hole < home || home <= i);
+            if (!stays) {
+                mTable[hole] = mTable[i];
+                mTable[i] = 0;
+                hole = i;
+            }
+        }
+    }
+
+    private void release(int slot) {
+        removeFromTable(slot);
+        unlink(slot);
+        mSize -= mEntrySizes[slot];
+        mCount--;
+        mValues[slot] = null;
+        mNext[slot] = mFree;
+        mFree = slot;
+    }
+
+    private int allocateSlot() {
+        if (mFree != NONE) {
+            final int slot = mFree;
+            mFree = mNext[slot];
+            return slot;
+        }
+        if (mSlotsUsed == mKeys.length) {
+            allocateSlots(mKeys.length * 2);
+        }
+        return mSlotsUsed++;
+    }
+
+    private void allocateSlots(int capacity) {
+        final long[] keys = new long[capacity];
+        final Object[] values = new Object[capacity];
+        final int[] entrySizes = new int[capacity];
+        final int[] previous = new int[capacity];
+        final int[] next = new int[capacity];
+        if (mKeys != null) {
+            System.arraycopy(mKeys, 0, keys, 0, mSlotsUsed);
+            System.arraycopy(mValues, 0, values, 0, mSlotsUsed);
+            System.arraycopy(mEntrySizes, 0, entrySizes, 0, mSlotsUsed);
+            System.arraycopy(mPrevious, 0, previous, 0, mSlotsUsed);
+            System.arraycopy(mNext, 0, next, 0, mSlotsUsed);
+        }
+        mKeys = keys;
+        mValues = values;
+        mEntrySizes = entrySizes;
+        mPrevious = previous;
+        mNext = next;
+    }
+
+    /**
+     * Replaces the table with an empty one with room for at least {@code entries} entries at
+     * half load.
+     */
+    private void allocateTable(int entries) {
+        int length = 8;
+        while (length < entries * 2) {
+            length *= 2;
+        }
+        mTable = new int[length];
+        mTableShift = 64 - Integer.numberOfTrailingZeros(length);
+    }
+
+    private void unlink(int slot) {
+        final int previous = mPrevious[slot];
+        final int next = mNext[slot];
+        if (previous != NONE) {
+            mNext[previous] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrevious[next] = previous;
+        } else {
+            mTail = previous;
+        }
+    }
+
+    private void linkLast(int slot) {
+        mPrevious[slot] = mTail;
+        mNext[slot] = NONE;
+        if (mTail != NONE) {
+            mNext[mTail] = slot;
+        } else {
+            mHead = slot;
+        }
+        mTail = slot;
+    }
+}
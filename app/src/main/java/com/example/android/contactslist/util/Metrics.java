@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of named counters, gauges and histograms describing how a component, such as an image
+ * cache or a search, is doing, cheap enough to update on every request from any thread. Owners
+ * look their metrics up once and keep them in fields; the names are only needed to query or
+ * {@link #dump} them.
+ */
+public class Metrics {
+    private final String mName;
+
+    // Every metric, in registration order. Only the map itself is guarded; the metrics are
+    // thread safe on their own.
+    private final LinkedHashMap<String, Object> mMetrics = new LinkedHashMap<String, Object>();
+
+    public Metrics(String name) {
+        mName = name;
+    }
+
+    /**
+     * A value that is read when it is queried rather than tracked, such as a cache's size.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     */
+    public Counter counter(String name) {
+        return (Counter) getOrAdd(name, new Counter());
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     *
+     * @param unit The unit of the recorded values, used when dumping.
+     */
+    public Histogram histogram(String name, String unit) {
+        return (Histogram) getOrAdd(name, new Histogram(unit));
+    }
+
+    /**
+     * Registers a gauge, replacing any existing metric with that name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        synchronized (mMetrics) {
+            mMetrics.put(name, gauge);
+        }
+    }
+
+    /**
+     * Returns the current value of the named metric: a counter's count, a gauge's value or the
+     * number of values a histogram has recorded. Returns 0 for unknown names.
+     */
+    public long getValue(String name) {
+        final Object metric = get(name);
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        } else if (metric instanceof Gauge) {
+            return ((Gauge) metric).getValue();
+        } else if (metric instanceof Histogram) {
+            return ((Histogram) metric).getCount();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the named histogram, or null if there is none.
+     */
+    public Histogram getHistogram(String name) {
+        final Object metric = get(name);
+        return metric instanceof Histogram ? (Histogram) metric : null;
+    }
+
+    /**
+     * Returns the names of every metric, in the order they were registered.
+     */
+    public ArrayList<String> getNames() {
+        synchronized (mMetrics) {
+            return new ArrayList<String>(mMetrics.keySet());
+        }
+    }
+
+    /**
+     * Zeroes every counter and histogram. Gauges are unaffected.
+     */
+    public void reset() {
+        final ArrayList<Object> metrics;
+        synchronized (mMetrics) {
+            metrics = new ArrayList<Object>(mMetrics.values());
+        }
+        for (int i = 0; i < metrics.size(); i++) {
+            final Object metric = metrics.get(i);
+            if (metric instanceof Counter) {
+                ((Counter) metric).mCount.set(0);
+            } else if (metric instanceof Histogram) {
+                ((Histogram) metric).reset();
+            }
+        }
+    }
+
+    /**
+     * Writes every metric, one per line, in a form suited to {@code dumpsys}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print(mName);
+        writer.println(" metrics:");
+        final String innerPrefix = prefix + "  ";
+        final ArrayList<String> names = getNames();
+        for (int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            final Object metric = get(name);
+            writer.print(innerPrefix);
+            writer.print(name);
+            writer.print('=');
+            if (metric instanceof Histogram) {
+                writer.println(metric);
+            } else {
+                writer.println(getValue(name));
+            }
+        }
+    }
+
+    private Object get(String name) {
+        synchronized (mMetrics) {
+            return mMetrics.get(name);
+        }
+    }
+
+    private Object getOrAdd(String name, Object metric) {
+        synchronized (mMetrics) {
+            final Object existing = mMetrics.get(name);
+            if (existing != null) {
+                return existing;
+            }
+            mMetrics.put(name, metric);
+            return metric;
+        }
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter {
+        private final AtomicLong mCount = new AtomicLong();
+
+        public void increment() {
+            mCount.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mCount.addAndGet(delta);
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+    }
+
+    /**
+     * The distribution of a non-negative value, in power-of-two buckets: bucket {@code i} holds
+     * values from {@code 2^(i-1)} up to {@code 2^i - 1}. Percentiles are reported as the upper
+     * bound of their bucket, so they are accurate to within a factor of two, which is plenty for
+     * telling a 2ms decode from a 20ms one.
+     */
+    public static class Histogram {
+        private static final int BUCKET_COUNT = 40;
+
+        private final String mUnit;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(String unit) {
+            mUnit = unit;
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            final int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKET_COUNT - 1);
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public double getMean() {
+            final long count = mCount.get();
+            return count == 0 ? 0 : (double) mSum.get() / count;
+        }
+
+        /**
+         * Returns an upper bound for the value below which {@code percentile} percent of the
+         * recorded values fall, or 0 if nothing has been recorded.
+         */
+        public long getPercentile(float percentile) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(count * percentile / 100f);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" + Math.round(getMean()) + mUnit
+                    + " p50=" + getPercentile(50) + mUnit
+                    + " p90=" + getPercentile(90) + mUnit
+                    + " p99=" + getPercentile(99) + mUnit
+                    + " max=" + getMax() + mUnit;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.contactslist.BuildConfig;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool for background work, such as decoding images or searching contacts.
+ * Pending jobs run highest priority first and, within a priority, most recently submitted first,
+ * so the rows that are on screen right now are decoded before rows that have already scrolled
+ * away. When more than {@code maxPending} jobs are waiting, the stalest one that may be dropped,
+ * see {@link Job#isDroppable()}, is dropped before it ever runs.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+    private static final String TAG = "PriorityExecutor";
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final int mMaxPending;
+
+    /**
+     * Creates a new executor.
+     *
+     * @param name Used to name the worker threads.
+     * @param threadCount The number of jobs that may run at the same time.
+     * @param maxPending The maximum number of jobs that may wait in the queue.
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    public PriorityExecutor(String name, int threadCount, int maxPending) {
+        super(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new PriorityThreadFactory(name));
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be at least 1");
+        }
+        mMaxPending = maxPending;
+
+        // Let idle workers exit so a loader that is no longer used doesn't keep threads alive
+        if (Utils.hasGingerbread()) {
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Returns a thread count suited to decoding images on this device: one less than the number
+     * of cores, so the UI thread always has a core to itself, and never more than three, since
+     * decoding more images at once only adds memory pressure.
+     */
+    public static int getDefaultThreadCount() {
+        final int cpuCount = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpuCount - 1, 3));
+    }
+
+    /**
+     * Queues a job at the given priority, dropping the stalest pending job if the queue is full.
+     */
+    public void execute(Job job, int priority) {
+        job.mPriority = priority;
+        job.mSequence = mSequence.incrementAndGet();
+        super.execute(job);
+        trimQueue();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!(command instanceof Job)) {
+            throw new IllegalArgumentException("PriorityExecutor only accepts Job instances");
+        }
+        execute((Job) command, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Raises the priority of a job that is still waiting, moving it ahead of lower priority
+     * work. Jobs that are already running, or already at that priority or higher, are left
+     * alone.
+     */
+    public void promote(Job job, int priority) {
+        if (priority > job.mPriority && remove(job)) {
+            execute(job, priority);
+        }
+    }
+
+    /**
+     * Removes the job from the queue if it has not started yet.
+     *
+     * @return true if the job was still pending.
+     */
+    public boolean cancel(Job job) {
+        return remove(job);
+    }
+
+    private synchronized void trimQueue() {
+        final BlockingQueue<Runnable> queue = getQueue();
+        while (queue.size() > mMaxPending) {
+            // The queue is only ordered at its head, so find the stalest job by walking it. The
+            // walk is bounded by mMaxPending.
+            Job stalest = null;
+            for (Runnable runnable : queue) {
+                final Job job = (Job) runnable;
+                if ((stalest == null || job.compareTo(stalest) > 0) && job.isDroppable()) {
+                    stalest = job;
+                }
+            }
+            if (stalest == null || !queue.remove(stalest)) {
+                break;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "trimQueue - dropped stale job " + stalest);
+            }
+            stalest.onDropped();
+        }
+    }
+
+    /**
+     * A unit of work for a {@link PriorityExecutor}.
+     */
+    public abstract static class Job implements Runnable, Comparable<Job> {
+        private volatile int mPriority = PRIORITY_NORMAL;
+        private volatile long mSequence;
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Called when the job is removed from the queue without running because newer work
+         * pushed it out.
+         */
+        protected void onDropped() {}
+
+        /**
+         * Returns false if the job must not be dropped to make room for newer work, such as one
+         * something on screen is waiting for. The queue may then hold more than its limit.
+         * Called on the thread submitting work.
+         */
+        protected boolean isDroppable() {
+            return true;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            // Newest first
+            return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private static class PriorityThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final String mName;
+
+        PriorityThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Keep the work from competing with the UI thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
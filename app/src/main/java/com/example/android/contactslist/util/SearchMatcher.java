@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.util;
+
+/**
+ * Finds a search term in contacts' display names, for highlighting it in the results. Case and
+ * accents are ignored as {@link ContactSearchIndex} ignores them, so a name the index matched
+ * has its match found, and the match is given as a range of the name as it is shown. Create one
+ * per search term; finding allocates nothing. Kept free of Android types so it can be
+ * benchmarked on a plain JVM.
+ */
+public final class SearchMatcher {
+    private final String mSearchTerm;
+    private final char[] mTerm;
+
+    private int mMatchStart = -1;
+    private int mMatchEnd = -1;
+
+    public SearchMatcher(String searchTerm) {
+        mSearchTerm = searchTerm;
+        mTerm = ContactSearchIndex.normalize(searchTerm);
+    }
+
+    public String getSearchTerm() {
+        return mSearchTerm;
+    }
+
+    /**
+     * Looks for the first occurrence of the term in {@code displayName}, returning false if it
+     * doesn't occur or the term is empty. If found, {@link #getMatchStart} and
+     * {@link #getMatchEnd} give where, including any accents on the last character.
+     */
+    public boolean find(String displayName) {
+        mMatchStart = -1;
+        mMatchEnd = -1;
+        if (displayName == null || mTerm.length == 0) {
+            return false;
+        }
+        final int length = displayName.length();
+        for (int start = 0; start < length; start++) {
+            if (ContactSearchIndex.isMark(displayName.charAt(start))) {
+                continue;
+            }
+            final int end = matchAt(displayName, start);
+            if (end >= 0) {
+                mMatchStart = start;
+                mMatchEnd = end;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the first character of the last match, or -1.
+     */
+    public int getMatchStart() {
+        return mMatchStart;
+    }
+
+    /**
+     * Returns the index after the last character of the last match, or -1.
+     */
+    public int getMatchEnd() {
+        return mMatchEnd;
+    }
+
+    /**
+     * Returns where the term's match starting at {@code start} ends, or -1 if it doesn't match
+     * there. Combining marks in the name are skipped, as normalizing drops them.
+     */
+    private int matchAt(String displayName, int start) {
+        final int length = displayName.length();
+        int i = start;
+        for (int t = 0; t < mTerm.length; t++) {
+            while (i < length && ContactSearchIndex.isMark(displayName.charAt(i))) {
+                i++;
+            }
+            if (i == length || ContactSearchIndex.normalize(displayName.charAt(i)) != mTerm[t]) {
+                return -1;
+            }
+            i++;
+        }
+        while (i < length && ContactSearchIndex.isMark(displayName.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
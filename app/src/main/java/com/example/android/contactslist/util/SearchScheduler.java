@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.contactslist.BuildConfig;
+
+import java.io.PrintWriter;
+
+/**
+ * Runs filter queries against a content provider as the user types, so that only the query for
+ * the latest text does any real work:
+ * <ul>
+ * <li>A query only starts once typing has paused for a debounce delay, which follows the
+ * measured query time: when queries are quick the list keeps up with every keystroke, and when
+ * they are slow fewer are started only to be thrown away.</li>
+ * <li>A new search cancels the query in progress, through a {@link CancellationSignal} from Jelly
+ * Bean, and a query still waiting to run is dropped.</li>
+ * <li>A result is only delivered if no newer search has been asked for since; a stale one is
+ * closed instead.</li>
+ * </ul>
+ * Once a {@link LocalSearch} is set, searches are answered by it instead, straight away.
+ *
+ * The provider's data isn't observed here; call {@link #refresh()} when it changes so the
+ * current search's result is brought up to date.
+ *
+ * Must be used from the UI thread; results are delivered on it too.
+ */
+public class SearchScheduler {
+    private static final String TAG = "SearchScheduler";
+
+    // The debounce delay follows the moving average of the query time, within these bounds
+    private static final long MIN_DEBOUNCE_MILLIS = 30;
+    private static final long MAX_DEBOUNCE_MILLIS = 300;
+    private static final long INITIAL_DEBOUNCE_MILLIS = 100;
+
+    // How much each new query time moves the average
+    private static final float LATENCY_WEIGHT = 0.25f;
+
+    // Names of the metrics reported by getMetrics()
+    public static final String METRIC_REQUESTS = "search.requests";
+    public static final String METRIC_QUERIES = "search.queries";
+    public static final String METRIC_DELIVERED = "search.delivered";
+    public static final String METRIC_CANCELLED = "search.cancelled";
+    public static final String METRIC_SUPERSEDED = "search.superseded";
+    public static final String METRIC_QUERY_TIME = "search.query_ms";
+    public static final String METRIC_DEBOUNCE = "search.debounce_ms";
+    public static final String METRIC_LOCAL_TIME = "search.local_us";
+
+    /**
+     * Receives search results on the UI thread.
+     */
+    public interface OnSearchResultListener {
+        /**
+         * Called with the result for the latest search. The listener owns the cursor.
+         *
+         * @param queryMillis How long the provider query took, including filling the cursor's
+         *         window.
+         */
+        public void onSearchResult(String query, Cursor cursor, long queryMillis);
+    }
+
+    /**
+     * Answers searches in process, such as from an index, without a provider query.
+     */
+    public interface LocalSearch {
+        /**
+         * Returns a cursor over the results for {@code query}, with the scheduler's projection
+         * and in its sort order.
+         */
+        public Cursor search(String query);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Uri mFilterUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String mSortOrder;
+    private final OnSearchResultListener mListener;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PriorityExecutor mExecutor = new PriorityExecutor(TAG, 1, 1);
+
+    private final Metrics mMetrics = new Metrics(TAG);
+    private final Metrics.Counter mRequests = mMetrics.counter(METRIC_REQUESTS);
+    private final Metrics.Counter mQueries = mMetrics.counter(METRIC_QUERIES);
+    private final Metrics.Counter mDelivered = mMetrics.counter(METRIC_DELIVERED);
+    private final Metrics.Counter mCancelled = mMetrics.counter(METRIC_CANCELLED);
+    private final Metrics.Counter mSuperseded = mMetrics.counter(METRIC_SUPERSEDED);
+    private final Metrics.Histogram mQueryTime =
+            mMetrics.histogram(METRIC_QUERY_TIME, "ms");
+    private final Metrics.Histogram mLocalTime =
+            mMetrics.histogram(METRIC_LOCAL_TIME, "us");
+
+    // Bumped by every search and cancel; a result is only delivered if it's still current.
+    // Only changed on the UI thread.
+    private volatile int mGeneration;
+
+    private volatile float mAverageQueryMillis;
+    private String mPendingQuery;
+    private LocalSearch mLocalSearch;
+
+    // The latest search, until it's cancelled
+    private String mQuery;
+
+    // The query running on the search thread, if any
+    private QueryJob mRunning;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            final String query = mPendingQuery;
+            mPendingQuery = null;
+            if (query != null) {
+                mExecutor.execute(new QueryJob(query, mGeneration),
+                        PriorityExecutor.PRIORITY_NORMAL);
+            }
+        }
+    };
+
+    /**
+     * @param filterUri The provider's filter Uri, to which the encoded query is appended.
+     */
+    public SearchScheduler(ContentResolver contentResolver, Uri filterUri, String[] projection,
+            String selection, String sortOrder, OnSearchResultListener listener) {
+        mContentResolver = contentResolver;
+        mFilterUri = filterUri;
+        mProjection = projection;
+        mSelection = selection;
+        mSortOrder = sortOrder;
+        mListener = listener;
+
+        mMetrics.gauge(METRIC_DEBOUNCE, new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getDebounceMillis();
+            }
+        });
+    }
+
+    /**
+     * Searches for {@code query} once typing pauses, superseding any earlier search.
+     */
+    public void search(String query) {
+        schedule(query, getDebounceMillis());
+    }
+
+    /**
+     * Searches for {@code query} straight away, superseding any earlier search. For a query that
+     * wasn't typed, such as one restored with the fragment's state.
+     */
+    public void searchNow(String query) {
+        schedule(query, 0);
+    }
+
+    /**
+     * Answers searches from {@code localSearch} from now on, on the UI thread and without waiting
+     * for typing to pause, as it must be quick enough to keep up with every keystroke. Pass null
+     * to go back to provider queries.
+     */
+    public void setLocalSearch(LocalSearch localSearch) {
+        mLocalSearch = localSearch;
+    }
+
+    /**
+     * Runs the current search again, as the data it searched has changed. Waits for the debounce
+     * delay first, so a burst of changes, as during a sync, costs one query. Does nothing if
+     * there is no current search, or searches are answered by a {@link LocalSearch}, which
+     * its owner has to rebuild instead.
+     */
+    public void refresh() {
+        if (mQuery != null && mLocalSearch == null) {
+            schedule(mQuery, getDebounceMillis());
+        }
+    }
+
+    /**
+     * Cancels the current search, if any. Its result won't be delivered.
+     */
+    public void cancel() {
+        mQuery = null;
+        mGeneration++;
+        mHandler.removeCallbacks(mDispatch);
+        mPendingQuery = null;
+        cancelRunning();
+    }
+
+    /**
+     * Cancels any search and stops the search thread. The scheduler can't be used afterwards.
+     */
+    public void close() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns how long a search waits for typing to pause: the average query time, within
+     * bounds.
+     */
+    public long getDebounceMillis() {
+        final float average = mAverageQueryMillis;
+        if (average == 0) {
+            return INITIAL_DEBOUNCE_MILLIS;
+        }
+        return Math.max(MIN_DEBOUNCE_MILLIS, Math.min(MAX_DEBOUNCE_MILLIS, Math.round(average)));
+    }
+
+    /**
+     * Returns this scheduler's request counts and query times. See the {@code METRIC_} constants
+     * for the names.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        mMetrics.dump(prefix, writer);
+    }
+
+    private void schedule(String query, long delayMillis) {
+        mQuery = query;
+        mRequests.increment();
+        mGeneration++;
+        mHandler.removeCallbacks(mDispatch);
+        // Whatever is running now is for older text, so it can only be thrown away
+        cancelRunning();
+        if (mLocalSearch != null) {
+            mPendingQuery = null;
+            searchLocally(query);
+            return;
+        }
+        mPendingQuery = query;
+        if (delayMillis > 0) {
+            mHandler.postDelayed(mDispatch, delayMillis);
+        } else {
+            mDispatch.run();
+        }
+    }
+
+    private void searchLocally(String query) {
+        final long start = System.nanoTime();
+        final Cursor cursor = mLocalSearch.search(query);
+        final long micros = (System.nanoTime() - start) / 1000;
+        mLocalTime.record(micros);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "local search \"" + query + "\" - " + cursor.getCount() + " rows in "
+                    + micros + "us");
+        }
+        mDelivered.increment();
+        mListener.onSearchResult(query, cursor, micros / 1000);
+    }
+
+    private void cancelRunning() {
+        final QueryJob running;
+        synchronized (this) {
+            running = mRunning;
+        }
+        if (running != null) {
+            running.cancel();
+        }
+    }
+
+    private void recordQueryTime(long millis) {
+        mQueryTime.record(millis);
+        final float average = mAverageQueryMillis;
+        mAverageQueryMillis = average == 0
+                ? millis : average + (millis - average) * LATENCY_WEIGHT;
+    }
+
+    /**
+     * Runs one provider query on the search thread, and hands its result to the UI thread.
+     */
+    private class QueryJob extends PriorityExecutor.Job {
+        private final String mQuery;
+        private final int mJobGeneration;
+
+        // A CancellationSignal from Jelly Bean, guarded by the job
+        private Object mSignal;
+        private boolean mCancelRequested;
+
+        QueryJob(String query, int generation) {
+            mQuery = query;
+            mJobGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            if (mJobGeneration != mGeneration) {
+                mSuperseded.increment();
+                return;
+            }
+            synchronized (SearchScheduler.this) {
+                mRunning = this;
+            }
+            final Uri uri = Uri.withAppendedPath(mFilterUri, Uri.encode(mQuery));
+            final long start = SystemClock.uptimeMillis();
+            Cursor cursor = null;
+            try {
+                mQueries.increment();
+                cursor = query(uri);
+                if (cursor != null) {
+                    // Fill the window here rather than on the UI thread
+                    cursor.getCount();
+                }
+            } finally {
+                synchronized (SearchScheduler.this) {
+                    mRunning = null;
+                }
+            }
+            if (cursor == null) {
+                return;
+            }
+
+            final long elapsed = SystemClock.uptimeMillis() - start;
+            recordQueryTime(elapsed);
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "query \"" + mQuery + "\" - " + cursor.getCount() + " rows in "
+                        + elapsed + "ms");
+            }
+            deliver(cursor, elapsed);
+        }
+
+        @Override
+        protected void onDropped() {
+            mSuperseded.increment();
+        }
+
+        private void deliver(final Cursor cursor, final long queryMillis) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mJobGeneration != mGeneration) {
+                        mSuperseded.increment();
+                        cursor.close();
+                        return;
+                    }
+                    mDelivered.increment();
+                    mListener.onSearchResult(mQuery, cursor, queryMillis);
+                }
+            });
+        }
+
+        /**
+         * Runs the query, or returns null if it was cancelled.
+         */
+        private Cursor query(Uri uri) {
+            if (!Utils.hasJellyBean()) {
+                return mContentResolver.query(uri, mProjection, mSelection, null, mSortOrder);
+            }
+            return queryCancellable(uri);
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        private Cursor queryCancellable(Uri uri) {
+            final CancellationSignal signal = new CancellationSignal();
+            synchronized (this) {
+                if (mCancelRequested) {
+                    mCancelled.increment();
+                    return null;
+                }
+                mSignal = signal;
+            }
+            try {
+                return mContentResolver.query(
+                        uri, mProjection, mSelection, null, mSortOrder, signal);
+            } catch (OperationCanceledException e) {
+                mCancelled.increment();
+                return null;
+            }
+        }
+
+        /**
+         * Stops the query if the platform supports it. Otherwise it runs to the end, and its
+         * result is thrown away.
+         */
+        void cancel() {
+            final Object signal;
+            synchronized (this) {
+                mCancelRequested = true;
+                signal = mSignal;
+            }
+            if (signal != null) {
+                cancelSignal(signal);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        private void cancelSignal(Object signal) {
+            ((CancellationSignal) signal).cancel();
+        }
+    }
+}
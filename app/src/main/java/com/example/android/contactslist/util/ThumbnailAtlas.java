@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+
+import java.util.WeakHashMap;
+
+/**
+ * Stores contact thumbnails that all have the same size as cells of a few large page bitmaps,
+ * rather than one bitmap each. A list of thousands of contacts then holds a handful of bitmaps
+ * instead of thousands, and each thumbnail costs one small {@link Entry} object on the heap.
+ *
+ * Thumbnails are keyed by contact id and evicted least recently used first; a freed cell is
+ * reused by the next thumbnail. Pages are allocated a row of cells at a time as they are needed,
+ * up to the byte budget, so the last page may be only partly tall.
+ *
+ * Thumbnails are shown with an {@link AtlasDrawable}, which draws its cell of the page. A cell
+ * is only reused once no drawable shows it: a thumbnail evicted while shown keeps its cell until
+ * its drawables are released, see {@link AtlasDrawable#release}, or garbage collected.
+ *
+ * Every thumbnail added rewrites part of a page, which with hardware acceleration uploads the
+ * whole page as a texture again the next time it's drawn, so pages are kept small. Those uploads
+ * are counted, see {@link #getPageUploadCount}, to weigh them against a bitmap per thumbnail.
+ */
+public class ThumbnailAtlas {
+    // Pages are at most this many pixels a side, so each is a single, small texture
+    private static final int MAX_PAGE_SIZE = 512;
+
+    private final int mCellSize;
+    private final int mColumns;
+    private final int mCellsPerPage;
+    private final int mRowBytes;
+
+    // The pages, replaced as a whole whenever one is added or dropped so drawing can read it
+    // without taking the lock
+    private volatile Bitmap[] mPages = new Bitmap[0];
+    private int mRows;
+    private int mMaxRows;
+
+    private final EntryCache mEntries;
+
+    // The thumbnail each cell holds, or null, and a stack of the free cells
+    private Entry[] mCellEntries = new Entry[0];
+    private int[] mFreeCells = new int[0];
+    private int mFreeCount;
+
+    // Cells evicted while shown, freed once nothing shows them any more
+    private int[] mHeldCells = new int[0];
+    private int mHeldCount;
+
+    // Drawables showing a cell, weakly so a drawable that's never released doesn't hold its
+    // cell forever
+    private final WeakHashMap<AtlasDrawable, Boolean> mShown =
+            new WeakHashMap<AtlasDrawable, Boolean>();
+
+    // Scratch space for copying a thumbnail into its cell, guarded by the atlas lock
+    private final int[] mPixels;
+    private Bitmap mScratch;
+    private Canvas mScratchCanvas;
+    private final Matrix mScratchMatrix = new Matrix();
+    private final Paint mScratchPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Only used to draw, on the UI thread
+    private final Rect mDrawSource = new Rect();
+    private final Paint mDrawPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // The generation of each page when it was last drawn with hardware acceleration, and how
+    // many times and bytes of page textures that has uploaded. Only written on the UI thread.
+    private int[] mDrawnGenerations = new int[0];
+    private volatile int mPageUploads;
+    private volatile long mPageUploadBytes;
+
+    /**
+     * @param cellSize The width and height of every thumbnail, in pixels.
+     * @param maxBytes How many bytes the pages may take up in total.
+     */
+    public ThumbnailAtlas(int cellSize, int maxBytes) {
+        mCellSize = cellSize;
+        mColumns = Math.max(1, MAX_PAGE_SIZE / cellSize);
+        mCellsPerPage = mColumns * mColumns;
+        mRowBytes = mColumns * cellSize * cellSize * 4;
+        mMaxRows = maxBytes / mRowBytes;
+        mEntries = new EntryCache(Math.max(1, mMaxRows * mColumns));
+        mPixels = new int[cellSize * cellSize];
+    }
+
+    public int getCellSize() {
+        return mCellSize;
+    }
+
+    /**
+     * Returns the thumbnail stored for a contact, or null if there is none for that photo and
+     * variant, see {@link ImageKey#getVariant()}.
+     */
+    public Entry get(long contactId, long photoId, String variant) {
+        final Entry entry = mEntries.get(contactId);
+        return entry != null && entry.mPhotoId == photoId
+                && ImageKey.sameVariant(entry.mVariant, variant) ? entry : null;
+    }
+
+    /**
+     * Returns a drawable showing the thumbnail stored for a contact, or null if there is none,
+     * like {@link #get}. The drawable holds on to the cell until it's released.
+     */
+    public synchronized AtlasDrawable acquire(long contactId, long photoId, String variant) {
+        return acquire(contactId, photoId, variant, null);
+    }
+
+    /**
+     * Like {@link #acquire(long, long, String)}, but points {@code reuse}, a drawable from this
+     * atlas that only the caller shows, at the thumbnail rather than allocating another, letting
+     * go of the cell it showed before.
+     */
+    public synchronized AtlasDrawable acquire(long contactId, long photoId, String variant,
+            AtlasDrawable reuse) {
+        final Entry entry = get(contactId, photoId, variant);
+        if (entry == null) {
+            return null;
+        }
+        if (reuse == null || reuse.mAtlas != this) {
+            return newDrawable(entry.mCell);
+        }
+        if (reuse.mCell != entry.mCell) {
+            release(reuse);
+            reuse.mCell = entry.mCell;
+            mShown.put(reuse, Boolean.TRUE);
+        }
+        return reuse;
+    }
+
+    /**
+     * Copies a thumbnail into a free cell, evicting the least recently used thumbnail if the
+     * atlas is full. A bitmap of any other size is center-cropped and scaled to the cell. The
+     * bitmap isn't kept, so the caller is free to reuse it.
+     *
+     * @return A drawable showing the stored thumbnail, which holds on to the cell until it's
+     *         released, or null if the atlas has no room, as when every cell is shown.
+     */
+    public synchronized AtlasDrawable put(long contactId, long photoId, String variant,
+            Bitmap bitmap) {
+        final Entry existing = get(contactId, photoId, variant);
+        if (existing != null) {
+            return newDrawable(existing.mCell);
+        }
+        final int cell = allocateCell();
+        if (cell < 0) {
+            return null;
+        }
+
+        final int x = (cell % mCellsPerPage % mColumns) * mCellSize;
+        final int y = (cell % mCellsPerPage / mColumns) * mCellSize;
+        copyToPixels(bitmap);
+        // setPixels rather than drawing into the page, so the page is marked changed and
+        // uploaded again if it was already drawn with hardware acceleration
+        mPages[cell / mCellsPerPage].setPixels(mPixels, 0, mCellSize, x, y, mCellSize, mCellSize);
+
+        final Entry entry = new Entry(contactId, cell, photoId, variant);
+        mCellEntries[cell] = entry;
+        mEntries.put(contactId, entry);
+        return newDrawable(cell);
+    }
+
+    /**
+     * Changes the byte budget. When it shrinks, pages that no longer fit are dropped along with
+     * their thumbnails, from the last page back, but never a page with a cell that's shown.
+     */
+    public synchronized void resize(int maxBytes) {
+        mMaxRows = maxBytes / mRowBytes;
+        final Bitmap[] pages = mPages;
+        int keptPages = pages.length;
+        while (keptPages > 0 && mRows > mMaxRows && !isPageShown(keptPages - 1)) {
+            keptPages--;
+            mRows -= pages[keptPages].getHeight() / mCellSize;
+        }
+        if (keptPages < pages.length) {
+            final int firstDropped = keptPages * mCellsPerPage;
+            for (int cell = firstDropped; cell < mCellEntries.length; cell++) {
+                final Entry entry = mCellEntries[cell];
+                if (entry != null) {
+                    mEntries.remove(entry.mContactId);
+                }
+            }
+            mFreeCount = keepCellsBelow(mFreeCells, mFreeCount, firstDropped);
+            mHeldCount = keepCellsBelow(mHeldCells, mHeldCount, firstDropped);
+            final Entry[] cellEntries = new Entry[firstDropped];
+            System.arraycopy(mCellEntries, 0, cellEntries, 0, firstDropped);
+            mCellEntries = cellEntries;
+            final Bitmap[] kept = new Bitmap[keptPages];
+            System.arraycopy(pages, 0, kept, 0, keptPages);
+            mPages = kept;
+        }
+        mEntries.resize(Math.max(1, mMaxRows * mColumns));
+    }
+
+    /**
+     * Returns how many bytes the allocated pages take up.
+     */
+    public synchronized int size() {
+        return mRows * mRowBytes;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxRows * mRowBytes;
+    }
+
+    /**
+     * Returns how many thumbnails are stored.
+     */
+    public int count() {
+        return mEntries.count();
+    }
+
+    /**
+     * Returns how many times a page has been uploaded as a texture, when first drawn or drawn
+     * after a thumbnail was added to it. Only drawing with hardware acceleration from Honeycomb
+     * MR1 on is counted.
+     */
+    public int getPageUploadCount() {
+        return mPageUploads;
+    }
+
+    /**
+     * Returns how many bytes of pages have been uploaded, see {@link #getPageUploadCount}.
+     */
+    public long getPageUploadBytes() {
+        return mPageUploadBytes;
+    }
+
+    private int allocateCell() {
+        if (mFreeCount == 0) {
+            freeHeldCells();
+        }
+        while (mFreeCount == 0) {
+            if (mRows < mMaxRows) {
+                addPage();
+            } else if (mEntries.count() > 0) {
+                // Full: make room by evicting the least recently used thumbnail. One that's
+                // shown keeps its cell, so this may take several.
+                mEntries.trimToSize(mEntries.count() - 1);
+            } else {
+                return -1;
+            }
+        }
+        return mFreeCells[--mFreeCount];
+    }
+
+    private void freeCell(int cell) {
+        mFreeCells[mFreeCount++] = cell;
+    }
+
+    /**
+     * Frees the cells evicted while shown that no drawable shows any more.
+     */
+    private void freeHeldCells() {
+        int kept = 0;
+        for (int i = 0; i < mHeldCount; i++) {
+            final int cell = mHeldCells[i];
+            if (isShown(cell)) {
+                mHeldCells[kept++] = cell;
+            } else {
+                freeCell(cell);
+            }
+        }
+        mHeldCount = kept;
+    }
+
+    private boolean isShown(int cell) {
+        for (AtlasDrawable drawable : mShown.keySet()) {
+            if (drawable.mCell == cell) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPageShown(int page) {
+        for (AtlasDrawable drawable : mShown.keySet()) {
+            if (drawable.mCell / mCellsPerPage == page) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int keepCellsBelow(int[] cells, int count, int limit) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (cells[i] < limit) {
+                cells[kept++] = cells[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Adds a page of up to a full page's rows, as many as the budget has left.
+     */
+    private void addPage() {
+        final Bitmap[] pages = mPages;
+        final int rows = Math.min(mColumns, mMaxRows - mRows);
+        final Bitmap[] grown = new Bitmap[pages.length + 1];
+        System.arraycopy(pages, 0, grown, 0, pages.length);
+        grown[pages.length] = Bitmap.createBitmap(
+                mColumns * mCellSize, rows * mCellSize, Bitmap.Config.ARGB_8888);
+        final int firstCell = pages.length * mCellsPerPage;
+        final int cells = rows * mColumns;
+        final Entry[] cellEntries = new Entry[firstCell + cells];
+        System.arraycopy(mCellEntries, 0, cellEntries, 0, mCellEntries.length);
+        mCellEntries = cellEntries;
+        final int[] freeCells = new int[firstCell + cells];
+        System.arraycopy(mFreeCells, 0, freeCells, 0, mFreeCount);
+        mFreeCells = freeCells;
+        final int[] heldCells = new int[firstCell + cells];
+        System.arraycopy(mHeldCells, 0, heldCells, 0, mHeldCount);
+        mHeldCells = heldCells;
+        // Hand out the new page's cells lowest first
+        for (int i = cells - 1; i >= 0; i--) {
+            freeCell(firstCell + i);
+        }
+        mRows += rows;
+        mPages = grown;
+    }
+
+    private AtlasDrawable newDrawable(int cell) {
+        final AtlasDrawable drawable = new AtlasDrawable(this, cell);
+        if (cell >= 0) {
+            mShown.put(drawable, Boolean.TRUE);
+        }
+        return drawable;
+    }
+
+    /**
+     * Lets go of a drawable's cell, freeing it if it was evicted while shown and nothing else
+     * shows it.
+     */
+    private synchronized void release(AtlasDrawable drawable) {
+        if (mShown.remove(drawable) != null && mCellEntries.length > drawable.mCell
+                && mCellEntries[drawable.mCell] == null) {
+            freeHeldCells();
+        }
+        drawable.mCell = -1;
+    }
+
+    /**
+     * Reads a thumbnail's pixels into mPixels, center-cropping and scaling it to the cell size
+     * first if it isn't that size already.
+     */
+    private void copyToPixels(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width == mCellSize && height == mCellSize) {
+            bitmap.getPixels(mPixels, 0, mCellSize, 0, 0, mCellSize, mCellSize);
+            return;
+        }
+
+        if (mScratch == null) {
+            mScratch = Bitmap.createBitmap(mCellSize, mCellSize, Bitmap.Config.ARGB_8888);
+            mScratchCanvas = new Canvas(mScratch);
+        }
+        setCenterCrop(mScratchMatrix, width, height, mCellSize);
+        mScratch.eraseColor(0);
+        mScratchCanvas.drawBitmap(bitmap, mScratchMatrix, mScratchPaint);
+        mScratch.getPixels(mPixels, 0, mCellSize, 0, 0, mCellSize, mCellSize);
+    }
+
+    /**
+     * Sets {@code matrix} to scale an image of the given size so that it covers a square of
+     * {@code size} pixels, centered, cropping whichever dimension is longer.
+     */
+    static void setCenterCrop(Matrix matrix, int width, int height, int size) {
+        final float scale = (float) size / Math.min(width, height);
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((size - width * scale) / 2f, (size - height * scale) / 2f);
+    }
+
+    /**
+     * Draws a cell into {@code bounds}. Must be called on the UI thread.
+     */
+    private void draw(Canvas canvas, int cell, Rect bounds, int alpha, ColorFilter colorFilter) {
+        final Bitmap[] pages = mPages;
+        final int page = cell / mCellsPerPage;
+        if (cell < 0 || page >= pages.length) {
+            return;
+        }
+        final int x = (cell % mCellsPerPage % mColumns) * mCellSize;
+        final int y = (cell % mCellsPerPage / mColumns) * mCellSize;
+        mDrawSource.set(x, y, x + mCellSize, y + mCellSize);
+        mDrawPaint.setAlpha(alpha);
+        mDrawPaint.setColorFilter(colorFilter);
+        canvas.drawBitmap(pages[page], mDrawSource, bounds, mDrawPaint);
+        if (Utils.hasHoneycombMR1() && canvas.isHardwareAccelerated()) {
+            countUpload(page, pages[page]);
+        }
+    }
+
+    /**
+     * Counts a page's texture upload if the page changed since it was last drawn, as its
+     * generation then differs. Must be called on the UI thread.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+    private void countUpload(int page, Bitmap bitmap) {
+        if (page >= mDrawnGenerations.length) {
+            final int[] grown = new int[page + 1];
+            System.arraycopy(mDrawnGenerations, 0, grown, 0, mDrawnGenerations.length);
+            mDrawnGenerations = grown;
+        }
+        final int generation = bitmap.getGenerationId();
+        if (mDrawnGenerations[page] != generation) {
+            mDrawnGenerations[page] = generation;
+            mPageUploads++;
+            mPageUploadBytes += bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+
+    /**
+     * A stored thumbnail: which cell of the atlas holds it, for as long as it is stored.
+     */
+    public static class Entry {
+        private final long mContactId;
+        private final long mPhotoId;
+        private final String mVariant;
+
+        // The cell, or -1 once the thumbnail has been evicted
+        private volatile int mCell;
+
+        Entry(long contactId, int cell, long photoId, String variant) {
+            mContactId = contactId;
+            mCell = cell;
+            mPhotoId = photoId;
+            mVariant = variant;
+        }
+    }
+
+    /**
+     * Draws one thumbnail from the atlas, scaled to its bounds. Its cell isn't reused for
+     * another thumbnail until the drawable is released, so it keeps drawing the same thumbnail
+     * even if that's evicted meanwhile.
+     */
+    public static class AtlasDrawable extends Drawable {
+        private final ThumbnailAtlas mAtlas;
+        private int mAlpha = 255;
+        private ColorFilter mColorFilter;
+        private ConstantState mState;
+
+        // The cell, or -1 once released
+        private volatile int mCell;
+
+        AtlasDrawable(ThumbnailAtlas atlas, int cell) {
+            mAtlas = atlas;
+            mCell = cell;
+        }
+
+        /**
+         * Lets go of the cell once the drawable is no longer shown, after which it draws
+         * nothing.
+         */
+        public void release() {
+            if (mCell >= 0) {
+                mAtlas.release(this);
+            }
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            mAtlas.draw(canvas, mCell, getBounds(), mAlpha, mColorFilter);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mAtlas.mCellSize;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mAtlas.mCellSize;
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            mAlpha = alpha;
+            invalidateSelf();
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+            mColorFilter = colorFilter;
+            invalidateSelf();
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+
+        /**
+         * Returns a state whose drawables show the same cell, each holding on to it until
+         * it's released.
+         */
+        @Override
+        public ConstantState getConstantState() {
+            if (mState == null) {
+                mState = new ConstantState() {
+                    @Override
+                    public Drawable newDrawable() {
+                        synchronized (mAtlas) {
+                            return mAtlas.newDrawable(mCell);
+                        }
+                    }
+
+                    @Override
+                    public int getChangingConfigurations() {
+                        return 0;
+                    }
+                };
+            }
+            return mState;
+        }
+    }
+
+    /**
+     * Thumbnails by contact id, sized in cells. Cells of removed thumbnails are freed, or held
+     * until no drawable shows them.
+     */
+    private class EntryCache extends LongLruCache<Entry> {
+
+        EntryCache(int maxCells) {
+            super(maxCells);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, long contactId, Entry oldValue,
+                Entry newValue) {
+            // Always called from within an atlas method, so the atlas lock is held
+            final int cell = oldValue.mCell;
+            oldValue.mCell = -1;
+            mCellEntries[cell] = null;
+            if (isShown(cell)) {
+                mHeldCells[mHeldCount++] = cell;
+            } else {
+                freeCell(cell);
+            }
+        }
+    }
+}
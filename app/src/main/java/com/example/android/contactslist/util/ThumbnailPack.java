@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.util.Log;
+
+import com.example.android.contactslist.BuildConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single file of contact thumbnails stored as raw pixels at one size, read through a
+ * {@link MappedByteBuffer}. A thumbnail found here is copied straight into a bitmap, with no
+ * decoding, so it's far cheaper than the compressed {@link DiskCache}. The mapped pages belong to
+ * the kernel rather than the heap, and are dropped by it under memory pressure.
+ *
+ * The file holds a fixed number of slots, set by its byte budget, so it never grows. Slots are
+ * keyed by contact id and reused least recently used first; a contact whose photo has changed
+ * gets the new one in place of the old on its next write. The file is laid out as:
+ * <pre>
+ *     header: magic, version, cell size, slot count (ints)
+ *     index:  per slot, contact id, photo id (longs), variant hash, valid flag (ints)
+ *     pixels: per slot, cellSize * cellSize ARGB_8888 pixels, page aligned
+ * </pre>
+ * A slot is marked invalid before its pixels are overwritten and valid once they are complete,
+ * so a write cut short by the process dying is never read back.
+ */
+public class ThumbnailPack {
+    private static final String TAG = "ThumbnailPack";
+
+    private static final int MAGIC = 0x54504B31; // "TPK1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 24;
+    private static final int PAGE_BYTES = 4096;
+
+    // Offsets within an index entry
+    private static final int INDEX_CONTACT_ID = 0;
+    private static final int INDEX_PHOTO_ID = 8;
+    private static final int INDEX_VARIANT = 16;
+    private static final int INDEX_VALID = 20;
+
+    private final int mCellSize;
+    private final int mSlotBytes;
+    private final int mSlotCount;
+    private final int mPixelsOffset;
+    private final MappedByteBuffer mBuffer;
+
+    private final SlotCache mSlots;
+    private final int[] mFreeSlots;
+    private int mFreeCount;
+
+    // Scratch space for scaling a thumbnail that isn't the cell size, guarded by the pack lock
+    private Bitmap mScratch;
+    private Canvas mScratchCanvas;
+    private final Matrix mScratchMatrix = new Matrix();
+    private final Paint mScratchPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private ThumbnailPack(MappedByteBuffer buffer, int cellSize, int slotCount, int pixelsOffset) {
+        mBuffer = buffer;
+        mCellSize = cellSize;
+        mSlotBytes = cellSize * cellSize * 4;
+        mSlotCount = slotCount;
+        mPixelsOffset = pixelsOffset;
+        mSlots = new SlotCache(slotCount);
+        mFreeSlots = new int[slotCount];
+    }
+
+    /**
+     * Opens the pack in {@code file}, creating it if it doesn't exist, or emptying it if it was
+     * written for another cell size or budget. This does disk I/O and must not be called on the
+     * UI thread.
+     *
+     * @param cellSize The width and height of every thumbnail, in pixels.
+     * @param maxBytes The most the file may take up, in bytes.
+     * @return The pack, or null if the budget doesn't hold a single thumbnail.
+     */
+    public static ThumbnailPack open(File file, int cellSize, int maxBytes) throws IOException {
+        final int slotBytes = cellSize * cellSize * 4;
+        final int slotCount = (maxBytes - HEADER_BYTES - PAGE_BYTES)
+                / (slotBytes + INDEX_ENTRY_BYTES);
+        if (slotCount <= 0) {
+            return null;
+        }
+        final int indexEnd = HEADER_BYTES + slotCount * INDEX_ENTRY_BYTES;
+        final int pixelsOffset = (indexEnd + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+        final long length = pixelsOffset + (long) slotCount * slotBytes;
+
+        final MappedByteBuffer buffer;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+            // The mapping stays valid once the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+
+        final ThumbnailPack pack = new ThumbnailPack(buffer, cellSize, slotCount, pixelsOffset);
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                && buffer.getInt(8) == cellSize && buffer.getInt(12) == slotCount) {
+            pack.readIndex();
+        } else {
+            pack.reset();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "open - " + pack.mSlots.count() + " of " + slotCount + " slots in use");
+        }
+        return pack;
+    }
+
+    public int getCellSize() {
+        return mCellSize;
+    }
+
+    /**
+     * Returns the number of thumbnails stored.
+     */
+    public int count() {
+        return mSlots.count();
+    }
+
+    /**
+     * Returns true if the pack holds a contact's thumbnail for that photo and variant.
+     */
+    public synchronized boolean contains(long contactId, long photoId, String variant) {
+        return find(contactId, photoId, variant) != null;
+    }
+
+    /**
+     * Copies a contact's thumbnail out of the pack into a bitmap from {@code bitmapPool}, or a
+     * new one if the pool has none of the cell size.
+     *
+     * @return The thumbnail, or null if there is none for that photo and variant.
+     */
+    public synchronized Bitmap get(long contactId, long photoId, String variant,
+            BitmapPool bitmapPool) {
+        final Slot slot = find(contactId, photoId, variant);
+        if (slot == null) {
+            return null;
+        }
+        final Bitmap bitmap = obtainCellBitmap(bitmapPool);
+        bitmap.copyPixelsFromBuffer(getPixels(slot.mIndex));
+        return bitmap;
+    }
+
+    /**
+     * Writes a contact's thumbnail into a slot, replacing the contact's previous thumbnail or
+     * else the least recently used one. A bitmap of any other size is center-cropped and scaled
+     * to the cell. The bitmap isn't kept.
+     */
+    public synchronized void put(long contactId, long photoId, String variant, Bitmap bitmap) {
+        if (find(contactId, photoId, variant) != null) {
+            return;
+        }
+        if (mFreeCount == 0 && mSlots.count() > 0) {
+            // Full: make room by evicting the least recently used thumbnail
+            mSlots.trimToSize(mSlots.count() - 1);
+        }
+        if (mFreeCount == 0) {
+            return;
+        }
+        final int index = mFreeSlots[--mFreeCount];
+
+        getCellSized(bitmap).copyPixelsToBuffer(getPixels(index));
+        final int entry = getIndexOffset(index);
+        mBuffer.putLong(entry + INDEX_CONTACT_ID, contactId);
+        mBuffer.putLong(entry + INDEX_PHOTO_ID, photoId);
+        mBuffer.putInt(entry + INDEX_VARIANT, hashVariant(variant));
+        mBuffer.putInt(entry + INDEX_VALID, 1);
+
+        mSlots.put(contactId, new Slot(index, photoId, variant));
+    }
+
+    private Slot find(long contactId, long photoId, String variant) {
+        final Slot slot = mSlots.get(contactId);
+        return slot != null && slot.mPhotoId == photoId
+                && hashVariant(variant) == slot.mVariantHash ? slot : null;
+    }
+
+    private void readIndex() {
+        for (int index = 0; index < mSlotCount; index++) {
+            final int entry = getIndexOffset(index);
+            if (mBuffer.getInt(entry + INDEX_VALID) == 0) {
+                mFreeSlots[mFreeCount++] = index;
+                continue;
+            }
+            final Slot slot = new Slot(index, mBuffer.getLong(entry + INDEX_PHOTO_ID),
+                    mBuffer.getInt(entry + INDEX_VARIANT));
+            mSlots.put(mBuffer.getLong(entry + INDEX_CONTACT_ID), slot);
+        }
+    }
+
+    /**
+     * Marks every slot free and writes the header, which goes last so a reset cut short is
+     * redone on the next open.
+     */
+    private void reset() {
+        mBuffer.putInt(0, 0);
+        for (int index = mSlotCount - 1; index >= 0; index--) {
+            mBuffer.putInt(getIndexOffset(index) + INDEX_VALID, 0);
+            mFreeSlots[mFreeCount++] = index;
+        }
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, mCellSize);
+        mBuffer.putInt(12, mSlotCount);
+        mBuffer.putInt(0, MAGIC);
+    }
+
+    private int getIndexOffset(int index) {
+        return HEADER_BYTES + index * INDEX_ENTRY_BYTES;
+    }
+
+    /**
+     * Returns a view of a slot's pixels, positioned at its start and limited to its end.
+     */
+    private ByteBuffer getPixels(int index) {
+        final ByteBuffer pixels = mBuffer.duplicate();
+        final int start = mPixelsOffset + index * mSlotBytes;
+        pixels.limit(start + mSlotBytes);
+        pixels.position(start);
+        return pixels;
+    }
+
+    /**
+     * Returns the bitmap itself if it already matches a slot's format, or else a scratch copy
+     * scaled to the cell size.
+     */
+    private Bitmap getCellSized(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width == mCellSize && height == mCellSize
+                && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            return bitmap;
+        }
+        if (mScratch == null) {
+            mScratch = Bitmap.createBitmap(mCellSize, mCellSize, Bitmap.Config.ARGB_8888);
+            mScratchCanvas = new Canvas(mScratch);
+        }
+        ThumbnailAtlas.setCenterCrop(mScratchMatrix, width, height, mCellSize);
+        mScratch.eraseColor(0);
+        mScratchCanvas.drawBitmap(bitmap, mScratchMatrix, mScratchPaint);
+        return mScratch;
+    }
+
+    /**
+     * Returns a mutable ARGB_8888 bitmap of the cell size, reused from the pool if it can be.
+     */
+    private Bitmap obtainCellBitmap(BitmapPool bitmapPool) {
+        final Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        return bitmapPool != null ? bitmapPool.obtain(mCellSize, mCellSize, config)
+                : Bitmap.createBitmap(mCellSize, mCellSize, config);
+    }
+
+    private static int hashVariant(String variant) {
+        return variant != null ? variant.hashCode() : 0;
+    }
+
+    /**
+     * Where a contact's thumbnail is stored, and which photo and variant it was made from.
+     */
+    private static class Slot {
+        final int mIndex;
+        final long mPhotoId;
+        final int mVariantHash;
+
+        Slot(int index, long photoId, int variantHash) {
+            mIndex = index;
+            mPhotoId = photoId;
+            mVariantHash = variantHash;
+        }
+
+        Slot(int index, long photoId, String variant) {
+            this(index, photoId, hashVariant(variant));
+        }
+    }
+
+    /**
+     * Slots by contact id. Removed slots are marked invalid in the file and freed.
+     */
+    private class SlotCache extends LongLruCache<Slot> {
+
+        SlotCache(int maxSlots) {
+            super(maxSlots);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, long contactId, Slot oldValue,
+                Slot newValue) {
+            // Always called from within a pack method, so the pack lock is held
+            mBuffer.putInt(getIndexOffset(oldValue.mIndex) + INDEX_VALID, 0);
+            mFreeSlots[mFreeCount++] = oldValue.mIndex;
+        }
+    }
+}
@@ -97,4 +97,20 @@ public class Utils {
     public static boolean hasICS() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
     }
+
+    /**
+     * Uses static final constants to detect if the device's platform version is Jelly Bean or
+     * later.
+     */
+    public static boolean hasJellyBean() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Uses static final constants to detect if the device's platform version is KitKat or
+     * later.
+     */
+    public static boolean hasKitKat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
 }
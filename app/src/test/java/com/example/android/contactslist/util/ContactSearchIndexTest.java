@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+
+/**
+ * Tests that searches ignore case and accents, as the provider's filter does, checked against a
+ * plain scan of the names.
+ */
+public class ContactSearchIndexTest {
+    static final String[] NAMES = {
+            "José García", "Jose Garcia", "JOSÉ GARCÍA-LÓPEZ", "Zoë Saldaña",
+            "Renée O'Brien",
+            "Łukasz Nowak", "Nguyễn Văn An", "Ann Anderson", "Anna-Maria Ångström",
+            "José Gaŕcia", "Åsa Öberg", "Müller", "Ünal Yılmaz", "François Ça",
+            "anne", "Dr. Ánh", "", null,
+    };
+
+    static ContactSearchIndex buildIndex() {
+        final ContactSearchIndex.Builder builder = new ContactSearchIndex.Builder(2);
+        for (int i = 0; i < NAMES.length; i++) {
+            builder.add(i, "lookup" + i, NAMES[i], null, null, 0);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void wordPrefixesIgnoreCaseAndAccents() {
+        final ContactSearchIndex index = buildIndex();
+        final String[] queries = {
+                "jose", "JOSÉ", "josé gar", "garcia jo", "lopez", "zoe", "saldana", "renee o",
+                "brien", "o'brien", "nguyen", "van an", "angstrom", "asa", "obe", "muller",
+                "unal", "francois", "ca", "anh", "an", "ann", "anna maria", "ánh", "é",
+                "xyz", "", "  ",
+        };
+        for (String query : queries) {
+            assertArrayEquals(query, scanWordPrefixes(query), index.findWordPrefixes(query));
+        }
+    }
+
+    @Test
+    public void containingIgnoresCaseAndAccents() {
+        final ContactSearchIndex index = buildIndex();
+        final String[] terms = {"arc", "ARCÍ", "ose", "ñ", "ngstr", "ller", "a", "zz", ""};
+        for (String term : terms) {
+            assertArrayEquals(term, scanContaining(term), index.findContaining(term));
+        }
+    }
+
+    @Test
+    public void normalizedQueriesAreFoldedWords() {
+        assertEquals("jose garcia", ContactSearchIndex.normalizeQuery("  José, GARCÍA "));
+        assertEquals("jose", ContactSearchIndex.normalizeQuery("José"));
+        assertEquals("o brien", ContactSearchIndex.normalizeQuery("O'Brien"));
+        assertEquals("", ContactSearchIndex.normalizeQuery(null));
+    }
+
+    /**
+     * Returns the rows whose name has a word starting with each word of the query, by folding
+     * and splitting every name.
+     */
+    static int[] scanWordPrefixes(String query) {
+        final String[] words = words(query);
+        final ArrayList<Integer> rows = new ArrayList<Integer>();
+        for (int row = 0; row < NAMES.length; row++) {
+            final String[] nameWords = words(NAMES[row]);
+            boolean all = true;
+            for (String word : words) {
+                boolean found = false;
+                for (String nameWord : nameWords) {
+                    found |= nameWord.startsWith(word);
+                }
+                all &= found;
+            }
+            if (all) {
+                rows.add(row);
+            }
+        }
+        return toArray(rows);
+    }
+
+    private static int[] scanContaining(String term) {
+        final String folded = fold(term);
+        final ArrayList<Integer> rows = new ArrayList<Integer>();
+        for (int row = 0; row < NAMES.length; row++) {
+            if (fold(NAMES[row]).contains(folded)) {
+                rows.add(row);
+            }
+        }
+        return toArray(rows);
+    }
+
+    private static String[] words(String s) {
+        final String folded = fold(s).replaceAll("[^\\p{L}\\p{Nd}]+", " ").trim();
+        return folded.length() == 0 ? new String[0] : folded.split(" ");
+    }
+
+    /**
+     * Lower-cases and strips accents the way the provider's filter ignores them.
+     */
+    private static String fold(String s) {
+        if (s == null) {
+            return "";
+        }
+        return Normalizer.normalize(s, Normalizer.Form.NFD).replaceAll("\\p{Mn}", "")
+                .toLowerCase();
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
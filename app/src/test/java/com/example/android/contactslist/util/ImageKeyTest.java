@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests that keys survive being written out and parsed back, as when passed to another
+ * activity, and that transformed images are cached apart from the plain ones.
+ */
+public class ImageKeyTest {
+    private static final String CIRCLE = "circle";
+    private static final String GRAY = "gray";
+
+    @Test
+    public void contactKeyRoundTrips() {
+        assertRoundTrips(ImageKey.forContact(42, 7, 96));
+        assertRoundTrips(ImageKey.forContact(42, 7, 96, CIRCLE));
+        assertRoundTrips(ImageKey.forContact(42, 7, 96,
+                ImageKey.appendTransform(CIRCLE, GRAY)));
+    }
+
+    @Test
+    public void sourceKeyRoundTrips() {
+        assertRoundTrips(ImageKey.forSource("content://contacts/1/photo", 96));
+        assertRoundTrips(ImageKey.forSource("content://contacts/1/photo", 96, CIRCLE));
+        // Sources may contain the separators themselves
+        assertRoundTrips(ImageKey.forSource("content://user@host/a#b", 96));
+        assertRoundTrips(ImageKey.forSource("content://user@host/a#b", 96, CIRCLE));
+    }
+
+    @Test
+    public void variantIsParsedBack() {
+        final ImageKey key = ImageKey.fromString(
+                ImageKey.forContact(42, 7, 96, CIRCLE).toString());
+        assertEquals(42, key.getContactId());
+        assertEquals(7, key.getPhotoId());
+        assertEquals(96, key.getSize());
+        assertEquals(CIRCLE, key.getVariant());
+        assertTrue(key.matches(42, 7, 96, CIRCLE));
+        assertFalse(key.matches(42, 7, 96, null));
+    }
+
+    @Test
+    public void malformedKeysParseToNull() {
+        assertNull(ImageKey.fromString(null));
+        assertNull(ImageKey.fromString("no size"));
+        assertNull(ImageKey.fromString("source@big"));
+        assertNull(ImageKey.fromString("contact:42@96"));
+        assertNull(ImageKey.fromString("contact:x:7@96"));
+    }
+
+    @Test
+    public void transformedImagesHaveTheirOwnKeys() {
+        final ImageKey plain = ImageKey.forContact(42, 7, 96);
+        final ImageKey circle = ImageKey.forContact(42, 7, 96, CIRCLE);
+        assertNotEquals(plain, circle);
+        assertNotEquals(circle, ImageKey.forContact(42, 7, 96, GRAY));
+        assertNotEquals(ImageKey.forSource("a", 96), ImageKey.forSource("a", 96, CIRCLE));
+        assertFalse(plain.matches(42, 7, 96, CIRCLE));
+    }
+
+    @Test
+    public void sameTransformsMakeTheSameKey() {
+        final String variant = ImageKey.appendTransform(ImageKey.appendTransform(null, CIRCLE),
+                GRAY);
+        final ImageKey key = ImageKey.forContact(42, 7, 96, variant);
+        final ImageKey same = ImageKey.forContact(42, 7, 96,
+                ImageKey.appendTransform(ImageKey.appendTransform(null, CIRCLE), GRAY));
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+    }
+
+    @Test
+    public void transformOrderChangesTheKey() {
+        final String circleThenGray =
+                ImageKey.appendTransform(ImageKey.appendTransform(null, CIRCLE), GRAY);
+        final String grayThenCircle =
+                ImageKey.appendTransform(ImageKey.appendTransform(null, GRAY), CIRCLE);
+        assertEquals("circle+gray", circleThenGray);
+        assertNotEquals(ImageKey.forContact(42, 7, 96, circleThenGray),
+                ImageKey.forContact(42, 7, 96, grayThenCircle));
+    }
+
+    @Test
+    public void transformNamesMustNotContainSeparators() {
+        assertInvalidTransformName(null);
+        assertInvalidTransformName("");
+        assertInvalidTransformName("a@b");
+        assertInvalidTransformName("a#b");
+        assertInvalidTransformName("a+b");
+    }
+
+    private static void assertRoundTrips(ImageKey key) {
+        final ImageKey parsed = ImageKey.fromString(key.toString());
+        assertEquals(key, parsed);
+        assertEquals(key.hashCode(), parsed.hashCode());
+        assertEquals(key.toString(), parsed.toString());
+        assertEquals(key.getVariant(), parsed.getVariant());
+    }
+
+    private static void assertInvalidTransformName(String name) {
+        try {
+            ImageKey.appendTransform(CIRCLE, name);
+            fail("Accepted transform name " + name);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests that results narrowed from an earlier query, or reused from the cache, are the same as
+ * searching the whole index for the query.
+ */
+public class IncrementalSearchTest {
+    private final ContactSearchIndex mIndex = ContactSearchIndexTest.buildIndex();
+
+    @Test
+    public void typingNarrowsToTheFreshResult() {
+        final IncrementalSearch search = new IncrementalSearch(mIndex);
+        typeAndCheck(search, "José Garcí");
+        assertEquals(1, search.fullSearchCount());
+        assertEquals(8, search.refinementCount());
+        // The trailing space doesn't change the normalized query
+        assertEquals(1, search.cacheHitCount());
+    }
+
+    @Test
+    public void backspacingReusesCachedResults() {
+        final IncrementalSearch search = new IncrementalSearch(mIndex);
+        final String query = "anna m";
+        typeAndCheck(search, query);
+        final int searches = search.fullSearchCount() + search.refinementCount();
+        final int hits = search.cacheHitCount();
+        for (int length = query.length() - 1; length > 0; length--) {
+            check(search, query.substring(0, length));
+        }
+        assertEquals(searches, search.fullSearchCount() + search.refinementCount());
+        assertEquals(hits + query.length() - 1, search.cacheHitCount());
+    }
+
+    @Test
+    public void queriesWithTheSameNormalizedFormShareAResult() {
+        final IncrementalSearch search = new IncrementalSearch(mIndex);
+        check(search, "jose");
+        check(search, "JOSÉ");
+        check(search, "  José ");
+        assertEquals(1, search.fullSearchCount());
+        assertEquals(2, search.cacheHitCount());
+    }
+
+    @Test
+    public void randomEditsMatchFreshSearches() {
+        final IncrementalSearch search = new IncrementalSearch(mIndex);
+        final String alphabet = "aájeéonrsgc -'";
+        final Random random = new Random(42);
+        final StringBuilder query = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            if (query.length() > 0 && (random.nextInt(3) == 0 || query.length() > 10)) {
+                query.setLength(query.length() - 1);
+            } else {
+                query.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            check(search, query.toString());
+        }
+    }
+
+    /**
+     * Types {@code query} a character at a time, checking each result.
+     */
+    private void typeAndCheck(IncrementalSearch search, String query) {
+        for (int length = 1; length <= query.length(); length++) {
+            check(search, query.substring(0, length));
+        }
+    }
+
+    private void check(IncrementalSearch search, String query) {
+        final int[] rows = search.search(query);
+        assertArrayEquals(query, mIndex.findWordPrefixes(query), rows);
+        assertArrayEquals(query, ContactSearchIndexTest.scanWordPrefixes(query), rows);
+    }
+}
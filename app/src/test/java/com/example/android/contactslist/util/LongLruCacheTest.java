@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.contactslist.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests the cache's table, whose deletions shift entries back along their probe runs, and its
+ * recency order, against the behaviour of the support library's LruCache.
+ */
+public class LongLruCacheTest {
+    // A cache made with this capacity has an 8 slot table, and keeps it up to 4 entries
+    private static final int SMALL_CAPACITY = 4;
+    private static final int SMALL_TABLE_LENGTH = 8;
+
+    @Test
+    public void removalAcrossWrapAroundKeepsLaterKeysFindable() {
+        // Two keys at home in the last slot, so the second wraps to the first slot, and one at
+        // home in the first slot, pushed along to the second
+        final long[] last = keysWithHome(SMALL_TABLE_LENGTH - 1, 2);
+        final long first = keysWithHome(0, 1)[0];
+        final LongLruCache<String> cache = new LongLruCache<String>(4, SMALL_CAPACITY);
+        cache.put(last[0], "a");
+        cache.put(last[1], "b");
+        cache.put(first, "c");
+
+        assertEquals("a", cache.remove(last[0]));
+        assertNull(cache.get(last[0]));
+        assertEquals("b", cache.get(last[1]));
+        assertEquals("c", cache.get(first));
+
+        assertEquals("b", cache.remove(last[1]));
+        assertEquals("c", cache.get(first));
+        assertEquals(1, cache.count());
+    }
+
+    @Test
+    public void getMakesAnEntryMostRecentlyUsed() {
+        final RecordingCache cache = new RecordingCache(3);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        cache.get(1);
+
+        cache.put(4, "d");
+        cache.put(5, "e");
+        assertEquals("[2, 3]", cache.mEvicted.toString());
+        assertEquals("a", cache.get(1));
+        assertNull(cache.get(2));
+    }
+
+    @Test
+    public void trimToSizeEvictsLeastRecentlyUsedUntilItFits() {
+        final RecordingCache cache = new RecordingCache(100);
+        cache.put(1, "aaaa");
+        cache.put(2, "bb");
+        cache.put(3, "cccccc");
+        cache.get(1);
+        assertEquals(12, cache.size());
+
+        cache.trimToSize(5);
+        assertEquals("[2, 3]", cache.mEvicted.toString());
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.count());
+        assertEquals(2, cache.evictionCount());
+        assertEquals("aaaa", cache.get(1));
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void keyCanBePutAgainAfterRemoval() {
+        final LongLruCache<String> cache = new LongLruCache<String>(4, SMALL_CAPACITY);
+        for (int round = 0; round < 10; round++) {
+            cache.put(42, "v" + round);
+            assertEquals("v" + round, cache.get(42));
+            assertEquals("v" + round, cache.remove(42));
+            assertNull(cache.get(42));
+            assertNull(cache.remove(42));
+        }
+        cache.put(42, "last");
+        assertEquals("last", cache.put(42, "replaced"));
+        assertEquals("replaced", cache.get(42));
+        assertEquals(1, cache.count());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void matchesAnAccessOrderedMapUnderRandomUse() {
+        final int maxSize = 6;
+        final LongLruCache<Long> cache = new LongLruCache<Long>(maxSize, SMALL_CAPACITY);
+        final LinkedHashMap<Long, Long> model = new LinkedHashMap<Long, Long>(16, 0.75f, true);
+        final Random random = new Random(42);
+        for (int op = 0; op < 100000; op++) {
+            // Few enough keys that probe runs often collide and wrap
+            final long key = random.nextInt(24) * 1000003L;
+            final int action = random.nextInt(3);
+            if (action == 0) {
+                assertEquals(model.get(key), cache.get(key));
+            } else if (action == 1) {
+                assertEquals(model.put(key, (long) op), cache.put(key, (long) op));
+                final Iterator<Long> eldest = model.keySet().iterator();
+                while (model.size() > maxSize) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            } else {
+                assertEquals(model.remove(key), cache.remove(key));
+            }
+            assertEquals(model.size(), cache.count());
+        }
+        for (Map.Entry<Long, Long> entry : model.entrySet()) {
+            assertEquals(entry.getValue(), cache.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Returns {@code count} keys that hash to {@code home} in a table of SMALL_TABLE_LENGTH,
+     * hashing as LongLruCache does.
+     */
+    private static long[] keysWithHome(int home, int count) {
+        final int shift = 64 - Integer.numberOfTrailingZeros(SMALL_TABLE_LENGTH);
+        final long[] keys = new long[count];
+        int found = 0;
+        for (long key = 1; found < count; key++) {
+            if ((int) ((key * 0x9E3779B97F4A7C15L) >>> shift) == home) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Sizes entries by their value's length, and records the keys it evicts.
+     */
+    private static class RecordingCache extends LongLruCache<String> {
+        final ArrayList<Long> mEvicted = new ArrayList<Long>();
+
+        RecordingCache(int maxSize) {
+            super(maxSize, SMALL_CAPACITY);
+        }
+
+        @Override
+        protected int sizeOf(long key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, long key, String oldValue,
+                String newValue) {
+            if (evicted) {
+                mEvicted.add(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.benchmark;
+
+import com.example.android.contactslist.util.ImageKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a cache key, which happens on the UI thread for every load started and
+ * every prefetch, and hashing it for a cache lookup: keyed by a photo's Uri, as the detail view
+ * does, and by contact and photo id, as the contact list does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheKeyBenchmark {
+    private static final int PHOTO_COUNT = 1024;
+    private static final int THUMBNAIL_SIZE = 96;
+
+    private String[] mPhotoUris;
+    private long[] mContactIds;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        // What Contacts.PHOTO_THUMBNAIL_URI holds for each contact
+        mPhotoUris = new String[PHOTO_COUNT];
+        mContactIds = new long[PHOTO_COUNT];
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            mContactIds[i] = 1000 + i * 7;
+            mPhotoUris[i] = "content://com.android.contacts/contacts/" + mContactIds[i]
+                    + "/photo";
+        }
+    }
+
+    @Benchmark
+    public int sourceKey() {
+        final String photoUri = mPhotoUris[mNext];
+        mNext = (mNext + 1) % PHOTO_COUNT;
+        return ImageKey.forSource(photoUri, THUMBNAIL_SIZE).hashCode();
+    }
+
+    @Benchmark
+    public int contactKey() {
+        final long contactId = mContactIds[mNext];
+        mNext = (mNext + 1) % PHOTO_COUNT;
+        return ImageKey.forContact(contactId, contactId * 3, THUMBNAIL_SIZE).hashCode();
+    }
+
+    @Benchmark
+    public String contactKeyToString() {
+        final long contactId = mContactIds[mNext];
+        mNext = (mNext + 1) % PHOTO_COUNT;
+        return ImageKey.forContact(contactId, contactId * 3, THUMBNAIL_SIZE).toString();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.benchmark;
+
+import android.support.v4.util.LruCache;
+
+import com.example.android.contactslist.util.ImageKey;
+import com.example.android.contactslist.util.LongLruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory cache under contention: the UI thread looking thumbnails up while decode
+ * threads add them. The caches are set up like ImageCache's tiers, sized in kilobytes with byte
+ * arrays standing in for bitmaps: one keyed by {@link ImageKey}, like the display tier, and one
+ * keyed by contact id, like the thumbnail tier. In the "fitting" benchmarks the working set fits
+ * in the cache; in the "evicting" ones it's twice its size, so about half the lookups miss and
+ * every put evicts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LruCacheBenchmark {
+    // A 96px RGB_565 thumbnail
+    private static final int THUMBNAIL_BYTES = 96 * 96 * 2;
+    private static final int CACHE_SIZE_KB = 4 * 1024;
+    private static final int CACHE_CAPACITY = CACHE_SIZE_KB * 1024 / THUMBNAIL_BYTES;
+
+    private LruCache<ImageKey, byte[]> mCache;
+    private LongLruCache<byte[]> mLongCache;
+    private ImageKey[] mKeys;
+    private long[] mContactIds;
+    private byte[][] mThumbnails;
+
+    @Setup
+    public void setUp() {
+        mCache = new LruCache<ImageKey, byte[]>(CACHE_SIZE_KB) {
+            @Override
+            protected int sizeOf(ImageKey key, byte[] value) {
+                return sizeInKilobytes(value);
+            }
+        };
+        mLongCache = new LongLruCache<byte[]>(CACHE_SIZE_KB) {
+            @Override
+            protected int sizeOf(long key, byte[] value) {
+                return sizeInKilobytes(value);
+            }
+        };
+
+        // Keys and values are allocated up front so the benchmark measures the cache, not the
+        // allocator
+        mKeys = new ImageKey[CACHE_CAPACITY * 2];
+        mContactIds = new long[mKeys.length];
+        mThumbnails = new byte[mKeys.length][];
+        final Random random = new Random(42);
+        for (int i = 0; i < mKeys.length; i++) {
+            mContactIds[i] = random.nextInt(1000000);
+            mKeys[i] = ImageKey.forContact(mContactIds[i], mContactIds[i] * 3, 96);
+            mThumbnails[i] = new byte[THUMBNAIL_BYTES];
+        }
+        for (int i = 0; i < CACHE_CAPACITY / 2; i++) {
+            mCache.put(mKeys[i], mThumbnails[i]);
+            mLongCache.put(mContactIds[i], mThumbnails[i]);
+        }
+    }
+
+    @Benchmark
+    public byte[] getOrPutFitting() {
+        return getOrPut(ThreadLocalRandom.current().nextInt(CACHE_CAPACITY / 2));
+    }
+
+    @Benchmark
+    public byte[] getOrPutEvicting() {
+        return getOrPut(ThreadLocalRandom.current().nextInt(mKeys.length));
+    }
+
+    @Benchmark
+    public byte[] getOrPutLongFitting() {
+        return getOrPutLong(ThreadLocalRandom.current().nextInt(CACHE_CAPACITY / 2));
+    }
+
+    @Benchmark
+    public byte[] getOrPutLongEvicting() {
+        return getOrPutLong(ThreadLocalRandom.current().nextInt(mKeys.length));
+    }
+
+    private static int sizeInKilobytes(byte[] value) {
+        final int size = value.length / 1024;
+        return size == 0 ? 1 : size;
+    }
+
+    private byte[] getOrPutLong(int index) {
+        final long contactId = mContactIds[index];
+        final byte[] thumbnail = mLongCache.get(contactId);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        mLongCache.put(contactId, mThumbnails[index]);
+        return mThumbnails[index];
+    }
+
+    private byte[] getOrPut(int index) {
+        final ImageKey key = mKeys[index];
+        final byte[] thumbnail = mCache.get(key);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        mCache.put(key, mThumbnails[index]);
+        return mThumbnails[index];
+    }
+}
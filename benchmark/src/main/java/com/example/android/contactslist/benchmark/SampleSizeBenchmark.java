@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.benchmark;
+
+import com.example.android.contactslist.util.ImageSizes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ImageSizes#calculateInSampleSize}, which runs for every photo decoded, over a
+ * mix of the source sizes the contacts provider hands out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleSizeBenchmark {
+    // Width and height pairs: provider thumbnails, display photos and camera-sized originals
+    private static final int[][] SOURCE_SIZES = {
+            {96, 96}, {144, 144}, {256, 256}, {720, 720}, {1080, 1080},
+            {1280, 960}, {1920, 1080}, {3264, 2448}, {4032, 3024}, {640, 4000},
+    };
+
+    /** The requested size: a list thumbnail or a full-screen photo. */
+    @Param({"96", "1080"})
+    public int reqSize;
+
+    private int mNext;
+
+    @Benchmark
+    public int calculateInSampleSize() {
+        final int[] source = SOURCE_SIZES[mNext];
+        mNext = (mNext + 1) % SOURCE_SIZES.length;
+        return ImageSizes.calculateInSampleSize(source[0], source[1], reqSize, reqSize);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.benchmark;
+
+import com.example.android.contactslist.util.SearchMatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the search term in each name, which the contact list's adapter does for
+ * every row it binds while searching. One operation is a screenful of rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchHighlightBenchmark {
+    private static final int ROWS_PER_SCREEN = 12;
+    private static final int NAME_COUNT = 1200;
+
+    private static final String[] FIRST_NAMES = {
+            "Anna", "Bartholomew", "Chloé", "Dmitri", "Elena", "Fatima", "Günther", "Hiroshi",
+            "Ingrid", "José", "Kwame", "Leilani", "Mohammed", "Nadia", "Oluwaseun", "Priya",
+    };
+    private static final String[] LAST_NAMES = {
+            "Anderson", "Brown", "Castellanos", "Dubois", "Eriksson", "Fernández", "García",
+            "Hernández", "Ivanova", "Johnson", "Kowalski", "Lindqvist", "Müller", "Nakamura",
+    };
+
+    /** A term matching at word starts, one matching mid-word, and one matching nothing. */
+    @Param({"an", "son", "xyz"})
+    public String searchTerm;
+
+    private String[] mNames;
+    private SearchMatcher mMatcher;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mNames = new String[NAME_COUNT];
+        final Random random = new Random(42);
+        for (int i = 0; i < NAME_COUNT; i++) {
+            mNames[i] = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + ' '
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        }
+        mMatcher = new SearchMatcher(searchTerm);
+    }
+
+    @Benchmark
+    public int bindScreen() {
+        int matches = 0;
+        for (int i = 0; i < ROWS_PER_SCREEN; i++) {
+            final String name = mNames[mNext];
+            mNext = (mNext + 1) % NAME_COUNT;
+            if (mMatcher.find(name)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.contactslist.benchmark;
+
+import com.example.android.contactslist.util.ContactSearchIndex;
+import com.example.android.contactslist.util.IncrementalSearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures answering a search from the contact list's in-memory index, which replaces a
+ * provider query for every keystroke, against building the index, which happens once per load
+ * of the list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchIndexBenchmark {
+    private static final int NAME_COUNT = 5000;
+
+    private static final String[] FIRST_NAMES = {
+            "Anna", "Bartholomew", "Chloé", "Dmitri", "Elena", "Fatima", "Günther", "Hiroshi",
+            "Ingrid", "José", "Kwame", "Leilani", "Mohammed", "Nadia", "Oluwaseun", "Priya",
+    };
+    private static final String[] LAST_NAMES = {
+            "Anderson", "Brown", "Castellanos", "Dubois", "Eriksson", "Fernández", "García",
+            "Hernández", "Ivanova", "Johnson", "Kowalski", "Lindqvist", "Müller", "Nakamura",
+    };
+
+    /**
+     * A short prefix matching many names, a longer one matching few, two words, and one
+     * matching nothing.
+     */
+    @Param({"a", "kowa", "el fer", "xyz"})
+    public String query;
+
+    private String[] mNames;
+    private ContactSearchIndex mIndex;
+
+    @Setup
+    public void setUp() {
+        mNames = new String[NAME_COUNT];
+        final Random random = new Random(42);
+        for (int i = 0; i < NAME_COUNT; i++) {
+            mNames[i] = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + ' '
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        }
+        mIndex = build();
+    }
+
+    private ContactSearchIndex build() {
+        final ContactSearchIndex.Builder builder = new ContactSearchIndex.Builder(NAME_COUNT);
+        for (int i = 0; i < NAME_COUNT; i++) {
+            builder.add(i, null, mNames[i], null, mNames[i], 0);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public int findWordPrefixes() {
+        return mIndex.findWordPrefixes(query).length;
+    }
+
+    @Benchmark
+    public int findContaining() {
+        return mIndex.findContaining(query).length;
+    }
+
+    @Benchmark
+    public int buildIndex() {
+        return build().size();
+    }
+
+    /**
+     * Types the query a character at a time and deletes it again, searching the whole index
+     * for every keystroke.
+     */
+    @Benchmark
+    public int typeAndDeleteFullSearches() {
+        int total = 0;
+        for (int length = 1; length <= query.length(); length++) {
+            total += mIndex.findWordPrefixes(query.substring(0, length)).length;
+        }
+        for (int length = query.length() - 1; length > 0; length--) {
+            total += mIndex.findWordPrefixes(query.substring(0, length)).length;
+        }
+        return total;
+    }
+
+    /**
+     * Types and deletes the query as above, narrowing and reusing earlier results as the
+     * list does.
+     */
+    @Benchmark
+    public int typeAndDeleteIncremental() {
+        final IncrementalSearch search = new IncrementalSearch(mIndex);
+        int total = 0;
+        for (int length = 1; length <= query.length(); length++) {
+            total += search.search(query.substring(0, length)).length;
+        }
+        for (int length = query.length() - 1; length > 0; length--) {
+            total += search.search(query.substring(0, length)).length;
+        }
+        return total;
+    }
+}